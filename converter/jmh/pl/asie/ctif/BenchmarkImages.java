@@ -0,0 +1,33 @@
+package pl.asie.ctif;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic inputs for the benchmarks: smooth gradients
+ * with a fixed-seed noise layer, so palette generation and dithering get
+ * realistic work while every run sees the same pixels.
+ */
+final class BenchmarkImages {
+	private BenchmarkImages() {
+
+	}
+
+	static BufferedImage create(int width, int height, long seed) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(seed);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int red = clamp(x * 255 / width + random.nextInt(48) - 24);
+				int green = clamp(y * 255 / height + random.nextInt(48) - 24);
+				int blue = clamp(((x ^ y) & 0xFF) / 2 + (x + y) * 127 / (width + height) + random.nextInt(24) - 12);
+				image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+			}
+		}
+		return image;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : (value > 255 ? 255 : value);
+	}
+}
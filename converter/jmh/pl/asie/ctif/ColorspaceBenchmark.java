@@ -0,0 +1,73 @@
+package pl.asie.ctif;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.asie.ctif.colorspace.Colorspace;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorspaceBenchmark {
+	@Param({"rgb", "yuv", "yiq"})
+	public String colorspace;
+
+	private Colorspace colorspaceObj;
+	private int[] rgb;
+	private float[] plane;
+	private int[] rgbOut;
+
+	@Setup
+	public void setup() {
+		switch (colorspace) {
+			case "rgb":
+				colorspaceObj = Colorspace.RGB;
+				break;
+			case "yuv":
+				colorspaceObj = Colorspace.YUV;
+				break;
+			default:
+				colorspaceObj = Colorspace.YIQ;
+				break;
+		}
+
+		Random random = new Random(3);
+		rgb = new int[320 * 200];
+		for (int i = 0; i < rgb.length; i++) {
+			rgb[i] = random.nextInt() & 0xFFFFFF;
+		}
+		plane = new float[rgb.length * 3];
+		rgbOut = new int[rgb.length];
+		colorspaceObj.fromRGB(rgb, 0, plane, 0, rgb.length);
+	}
+
+	@Benchmark
+	public void fromRGB(Blackhole blackhole) {
+		for (int value : rgb) {
+			blackhole.consume(colorspaceObj.fromRGB(value));
+		}
+	}
+
+	@Benchmark
+	public float[] fromRGBBulk() {
+		colorspaceObj.fromRGB(rgb, 0, plane, 0, rgb.length);
+		return plane;
+	}
+
+	@Benchmark
+	public int toRGB() {
+		int acc = 0;
+		for (int i = 0; i < rgb.length; i++) {
+			acc ^= colorspaceObj.toRGB(plane, i * 3);
+		}
+		return acc;
+	}
+
+	@Benchmark
+	public int[] toRGBBulk() {
+		colorspaceObj.toRGB(plane, 0, rgbOut, 0, rgb.length);
+		return rgbOut;
+	}
+}
@@ -0,0 +1,60 @@
+package pl.asie.ctif;
+
+import org.openjdk.jmh.annotations.*;
+import pl.asie.ctif.colorspace.Colorspace;
+import pl.asie.ctif.platform.Platform;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConverterBenchmark {
+	@Param({"cc", "oc-tier2", "oc-tier3", "zxspectrum"})
+	public String platform;
+
+	@Param({"NONE", "ERROR", "ORDERED"})
+	public Converter.DitherMode ditherMode;
+
+	@Param({"1"})
+	public int optimizationLevel;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private Platform platformObj;
+	private ConversionContext context;
+	private ConverterEngine engine;
+	private BufferedImage image;
+	private Color[] palette;
+	private float[] ditherArray;
+
+	@Setup
+	public void setup() {
+		platformObj = Main.getPlatform(platform);
+		context = new ConversionContext(platformObj, Colorspace.YIQ, optimizationLevel);
+
+		// 160x96 pixels, rounded down to whole characters.
+		int width = 160 / platformObj.getCharWidth() * platformObj.getCharWidth();
+		int height = 96 / platformObj.getCharHeight() * platformObj.getCharHeight();
+		image = BenchmarkImages.create(width, height, 1);
+		palette = platformObj.getPalette();
+		ditherArray = Main.getDitherArray(ditherMode == Converter.DitherMode.ORDERED ? "4x4" : "floyd-steinberg");
+		engine = new ConverterEngine(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.close();
+	}
+
+	@Benchmark
+	public BufferedImage write() throws IOException {
+		Converter converter = engine.createConverter(context, palette, image, ditherMode, ditherArray);
+		return converter.write(new ByteArrayOutputStream());
+	}
+}
@@ -0,0 +1,41 @@
+package pl.asie.ctif;
+
+import org.openjdk.jmh.annotations.*;
+import pl.asie.ctif.colorspace.Colorspace;
+import pl.asie.ctif.platform.Platform;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PaletteGeneratorBenchmark {
+	@Param({"0", "64", "256"})
+	public int samplingResolution;
+
+	@Param({"0", "1", "3"})
+	public int optimizationLevel;
+
+	@Param({"1"})
+	public int threads;
+
+	private ConversionContext context;
+	private BufferedImage image;
+	private Color[] base;
+
+	@Setup
+	public void setup() {
+		Platform platform = Main.getPlatform("oc-tier3");
+		context = new ConversionContext(platform, Colorspace.YIQ, optimizationLevel);
+		image = BenchmarkImages.create(320, 200, 2);
+		base = platform.getPalette();
+	}
+
+	@Benchmark
+	public Color[] generate() {
+		PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(context, image, base, 16, samplingResolution, 1L);
+		return generator.generate(threads);
+	}
+}
@@ -0,0 +1,61 @@
+package pl.asie.ctif;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResizeBenchmark {
+	@Param({"1280x800", "4000x3000"})
+	public String sourceSize;
+
+	private BufferedImage image;
+
+	/**
+	 * Fails the ImageMagick benchmark when ImageMagick is not installed,
+	 * rather than letting it measure the built-in resampler under its name.
+	 */
+	@State(Scope.Benchmark)
+	public static class ImageMagick {
+		@Setup
+		public void setup() {
+			if (!Utils.hasImageMagick()) {
+				throw new IllegalStateException("ImageMagick not found; install it to run this benchmark.");
+			}
+		}
+	}
+
+	@Setup
+	public void setup() {
+		String[] size = sourceSize.split("x");
+		image = BenchmarkImages.create(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 4);
+	}
+
+	@Benchmark
+	public BufferedImage resize(ImageMagick imageMagick) {
+		return Utils.resize(image, 320, 200, false);
+	}
+
+	@Benchmark
+	public BufferedImage resizeNative() {
+		return Utils.resize(image, 320, 200, true);
+	}
+
+	@Benchmark
+	public BufferedImage resizeLanczos() {
+		return Resampler.resize(image, 320, 200, Resampler.Filter.LANCZOS, 1);
+	}
+
+	@Benchmark
+	public BufferedImage resizeMitchell() {
+		return Resampler.resize(image, 320, 200, Resampler.Filter.MITCHELL, 1);
+	}
+
+	@Benchmark
+	public BufferedImage resizeBox() {
+		return Utils.resizeBox(image, 320, 200);
+	}
+}
@@ -0,0 +1,190 @@
+package pl.asie.ctif;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writes a sequence of converted frames as a single animated CTIF file.
+ *
+ * The file starts with a version 2 CTIF header, identical to the version 1
+ * header otherwise. Each frame then follows as:
+ *
+ * - u8 flags (bit 0 - keyframe, bit 1 - palette follows; 0xFF ends the file),
+ * - u16 delay in milliseconds,
+ * - 16 palette entries, if bit 1 is set (same layout as in the header),
+ * - for keyframes, every cell, as in a version 1 file,
+ * - otherwise, a u16 run count, then for every run a u16 start cell index,
+ *   a u8 length (1-255) and the data of that many cells.
+ *
+ * A new palette always comes with a keyframe. Every frame is assembled in
+ * memory and written to the channel at once.
+ */
+public class CTIFAnimationWriter implements Closeable {
+	private static final int FLAG_KEYFRAME = 0x01;
+	private static final int FLAG_PALETTE = 0x02;
+	private static final int END_OF_STREAM = 0xFF;
+	private static final int MAX_RUN_LENGTH = 255;
+
+	private final WritableByteChannel channel;
+	private final int keyframeInterval;
+	private final CTIFBuffer frameData = new CTIFBuffer();
+	private final CTIFBuffer runData = new CTIFBuffer();
+	private Color[] lastPalette;
+	private int[] lastCells;
+	private int cellLength;
+	private int framesSinceKeyframe;
+	private int frameCount;
+
+	/**
+	 * @param keyframeInterval Write a keyframe at least every this many
+	 *                         frames. 0 = only the first frame and palette
+	 *                         changes.
+	 */
+	public CTIFAnimationWriter(OutputStream stream, int keyframeInterval) {
+		this(Channels.newChannel(stream), keyframeInterval);
+	}
+
+	/**
+	 * @param keyframeInterval Write a keyframe at least every this many
+	 *                         frames. 0 = only the first frame and palette
+	 *                         changes.
+	 */
+	public CTIFAnimationWriter(WritableByteChannel channel, int keyframeInterval) {
+		this.channel = channel;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * Converts the frame, if it has not been converted yet, and appends it.
+	 * All frames must have the same size as the first one.
+	 *
+	 * @return The preview image of the frame.
+	 */
+	public BufferedImage writeFrame(Converter frame, int delay) throws IOException {
+		frame.convertCells();
+
+		int cellCount = frame.getCellCount();
+		boolean keyframe = false;
+		boolean sendPalette = false;
+
+		frameData.clear();
+		if (lastCells == null) {
+			frame.writeHeader(frameData, 2);
+			cellLength = frame.getEncodedCellLength();
+			lastCells = new int[cellCount * cellLength];
+			lastPalette = frame.getPalette();
+			keyframe = true;
+		} else {
+			if (cellCount * cellLength != lastCells.length || frame.getEncodedCellLength() != cellLength) {
+				throw new IllegalArgumentException("Frame " + frameCount + " does not match the size of the first frame!");
+			}
+
+			if (!Arrays.equals(lastPalette, frame.getPalette())) {
+				lastPalette = frame.getPalette();
+				sendPalette = frame.getContext().getPlatform().getCustomColorCount() > 0;
+				keyframe = true;
+			} else if (keyframeInterval > 0 && framesSinceKeyframe >= keyframeInterval) {
+				keyframe = true;
+			}
+		}
+
+		BufferedImage output = frame.createPreviewImage();
+		int[] cells = new int[lastCells.length];
+		int[] cell = new int[cellLength];
+		for (int i = 0; i < cellCount; i++) {
+			frame.encodeCell(i, cell);
+			frame.renderCell(output, i, cell);
+			System.arraycopy(cell, 0, cells, i * cellLength, cellLength);
+		}
+
+		frameData.write((keyframe ? FLAG_KEYFRAME : 0) | (sendPalette ? FLAG_PALETTE : 0));
+		frameData.writeShort(delay);
+		if (sendPalette) {
+			frame.writePalette(frameData);
+		}
+
+		if (keyframe) {
+			frameData.ensureCapacity(cellCount * frame.getCellDataLength());
+			for (int i = 0; i < cellCount; i++) {
+				System.arraycopy(cells, i * cellLength, cell, 0, cellLength);
+				frame.writeCell(frameData, cell);
+			}
+			framesSinceKeyframe = 0;
+		} else {
+			writeDelta(frame, cells, cellCount);
+		}
+		frameData.writeTo(channel);
+
+		lastCells = cells;
+		framesSinceKeyframe++;
+		frameCount++;
+		return output;
+	}
+
+	private void writeDelta(Converter frame, int[] cells, int cellCount) throws IOException {
+		runData.clear();
+		int[] cell = new int[cellLength];
+		int runs = 0;
+
+		int i = 0;
+		while (i < cellCount) {
+			if (!cellChanged(cells, i)) {
+				i++;
+				continue;
+			}
+
+			int start = i;
+			while (i < cellCount && i - start < MAX_RUN_LENGTH && cellChanged(cells, i)) {
+				i++;
+			}
+
+			runData.writeShort(start);
+			runData.write(i - start);
+			for (int j = start; j < i; j++) {
+				System.arraycopy(cells, j * cellLength, cell, 0, cellLength);
+				frame.writeCell(runData, cell);
+			}
+			runs++;
+		}
+
+		if (runs > 0xFFFF) {
+			throw new IOException("Too many changed cell runs in frame " + frameCount + ": " + runs);
+		}
+
+		frameData.writeShort(runs);
+		frameData.write(runData);
+	}
+
+	private boolean cellChanged(int[] cells, int i) {
+		for (int j = i * cellLength; j < (i + 1) * cellLength; j++) {
+			if (cells[j] != lastCells[j]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Ends the file and closes the channel. Without any frames there is no
+	 * header either, so nothing is written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (frameCount > 0) {
+			frameData.clear();
+			frameData.write(END_OF_STREAM);
+			frameData.writeTo(channel);
+		}
+		channel.close();
+	}
+}
@@ -0,0 +1,88 @@
+package pl.asie.ctif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer CTIF data is assembled in before it is written out
+ * in one go, instead of a byte at a time. It can be cleared and reused, and
+ * also serves as an in-memory sink: Converter.write(CTIFBuffer) leaves a
+ * whole CTIF file in it.
+ */
+public final class CTIFBuffer {
+	private byte[] data;
+	private int size;
+
+	public CTIFBuffer() {
+		this(4096);
+	}
+
+	public CTIFBuffer(int capacity) {
+		data = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * Makes room for at least the given amount of bytes more, so that large
+	 * writes of a known size grow the buffer at most once.
+	 */
+	public void ensureCapacity(int extra) {
+		if (size + extra > data.length) {
+			data = Arrays.copyOf(data, Math.max(size + extra, data.length * 2));
+		}
+	}
+
+	public void write(int b) {
+		if (size == data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[size++] = (byte) b;
+	}
+
+	/**
+	 * Writes the low 16 bits of v, little-endian.
+	 */
+	public void writeShort(int v) {
+		write(v & 0xFF);
+		write((v >> 8) & 0xFF);
+	}
+
+	public void write(CTIFBuffer other) {
+		ensureCapacity(other.size);
+		System.arraycopy(other.data, 0, data, size, other.size);
+		size += other.size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/**
+	 * @return A read-only view of the contents, valid until the buffer is
+	 * next written to or cleared.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(data, 0, size).asReadOnlyBuffer();
+	}
+
+	public void writeTo(OutputStream stream) throws IOException {
+		stream.write(data, 0, size);
+	}
+
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
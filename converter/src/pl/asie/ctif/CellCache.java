@@ -0,0 +1,193 @@
+package pl.asie.ctif;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A bounded LRU cache of cell conversion results, keyed by the cell's
+ * pixels. Only usable for dither modes where a cell's result depends on
+ * nothing but its own pixels, the conversion settings and, for ordered
+ * dithering, its position modulo the dither matrix size.
+ *
+ * The cache is thread-safe and can be shared between conversions with
+ * different settings; the settings are part of every key.
+ */
+public class CellCache {
+	private static final int FILE_MAGIC = 0x43544343; // CTCC
+	private static final int FILE_VERSION = 1;
+
+	public static final class Key {
+		private long settings;
+		private int position;
+		private final int[] pixels;
+		private int hash;
+
+		public Key(long settings, int position, int[] pixels) {
+			this.pixels = pixels;
+			set(settings, position);
+		}
+
+		/**
+		 * Sets the settings and position of a key reused for lookups, and
+		 * rehashes it after its pixels have been filled in. Such a key must
+		 * not be put into the cache; put a copy() of it instead.
+		 */
+		void set(long settings, int position) {
+			this.settings = settings;
+			this.position = position;
+			this.hash = (Long.hashCode(settings) * 31 + position) * 31 + Arrays.hashCode(pixels);
+		}
+
+		int[] getPixels() {
+			return pixels;
+		}
+
+		Key copy() {
+			return new Key(settings, position, pixels.clone());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return key.hash == hash && key.settings == settings && key.position == position && Arrays.equals(key.pixels, pixels);
+		}
+	}
+
+	public static final class Result {
+		final int color1, color2;
+		final int[] quadrants;
+		final double error;
+
+		public Result(int color1, int color2, int[] quadrants, double error) {
+			this.color1 = color1;
+			this.color2 = color2;
+			this.quadrants = quadrants;
+			this.error = error;
+		}
+	}
+
+	private final int capacity;
+	private final Map<Key, Result> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public CellCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+				return size() > CellCache.this.capacity;
+			}
+		};
+	}
+
+	public Result get(Key key) {
+		Result result;
+		synchronized (entries) {
+			result = entries.get(key);
+		}
+		if (result != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return result;
+	}
+
+	public void put(Key key, Result result) {
+		synchronized (entries) {
+			entries.put(key, result);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Loads the entries saved by save(), oldest first. Entries beyond the
+	 * capacity are dropped.
+	 */
+	public void load(File file) throws IOException {
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (stream.readInt() != FILE_MAGIC) {
+				throw new IOException("Not a cell cache file: " + file);
+			}
+			int version = stream.readInt();
+			if (version != FILE_VERSION) {
+				throw new IOException("Unsupported cell cache version: " + version);
+			}
+
+			int count = stream.readInt();
+			for (int i = 0; i < count; i++) {
+				long settings = stream.readLong();
+				int position = stream.readInt();
+				int[] pixels = new int[stream.readUnsignedByte()];
+				for (int j = 0; j < pixels.length; j++) {
+					pixels[j] = stream.readInt();
+				}
+				int color1 = stream.readUnsignedByte();
+				int color2 = stream.readUnsignedByte();
+				int[] quadrants = new int[stream.readUnsignedByte()];
+				for (int j = 0; j < quadrants.length; j++) {
+					quadrants[j] = stream.readUnsignedByte();
+				}
+				double error = stream.readDouble();
+				put(new Key(settings, position, pixels), new Result(color1, color2, quadrants, error));
+			}
+		}
+	}
+
+	/**
+	 * Saves every entry, least recently used first.
+	 */
+	public void save(File file) throws IOException {
+		try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))))) {
+			stream.writeInt(FILE_MAGIC);
+			stream.writeInt(FILE_VERSION);
+			synchronized (entries) {
+				stream.writeInt(entries.size());
+				for (Map.Entry<Key, Result> entry : entries.entrySet()) {
+					Key key = entry.getKey();
+					Result result = entry.getValue();
+					stream.writeLong(key.settings);
+					stream.writeInt(key.position);
+					stream.writeByte(key.pixels.length);
+					for (int pixel : key.pixels) {
+						stream.writeInt(pixel);
+					}
+					stream.writeByte(result.color1);
+					stream.writeByte(result.color2);
+					stream.writeByte(result.quadrants.length);
+					for (int quadrant : result.quadrants) {
+						stream.writeByte(quadrant);
+					}
+					stream.writeDouble(result.error);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package pl.asie.ctif;
+
+import java.util.Arrays;
+
+/**
+ * Counts occurrences of ARGB colours without boxing. Colours are numbered
+ * 0..size()-1 in the order they were first added; an open-addressing table
+ * maps each colour to its number.
+ */
+final class ColorHistogram {
+	private static final int EMPTY = -1;
+
+	private int[] table;
+	private int mask;
+	private int[] colors;
+	private int[] weights;
+	private int size;
+
+	ColorHistogram() {
+		this(256);
+	}
+
+	ColorHistogram(int expectedColors) {
+		int capacity = 16;
+		while (capacity < expectedColors * 2) {
+			capacity <<= 1;
+		}
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		Arrays.fill(table, EMPTY);
+		this.colors = new int[Math.max(16, expectedColors)];
+		this.weights = new int[colors.length];
+	}
+
+	private static int slot(int color, int mask) {
+		int h = color * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	public void add(int color) {
+		add(color, 1);
+	}
+
+	public void add(int color, int weight) {
+		int s = slot(color, mask);
+		int index;
+		while ((index = table[s]) != EMPTY) {
+			if (colors[index] == color) {
+				weights[index] += weight;
+				return;
+			}
+			s = (s + 1) & mask;
+		}
+
+		if (size == colors.length) {
+			colors = Arrays.copyOf(colors, size * 2);
+			weights = Arrays.copyOf(weights, size * 2);
+		}
+		colors[size] = color;
+		weights[size] = weight;
+		table[s] = size++;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(table, EMPTY);
+		for (int i = 0; i < size; i++) {
+			int s = slot(colors[i], mask);
+			while (table[s] != EMPTY) {
+				s = (s + 1) & mask;
+			}
+			table[s] = i;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getColor(int index) {
+		return colors[index];
+	}
+
+	public int getWeight(int index) {
+		return weights[index];
+	}
+
+	/**
+	 * @return A copy of the colours, in order of their numbers.
+	 */
+	public int[] getColors() {
+		return Arrays.copyOf(colors, size);
+	}
+
+	/**
+	 * @return A copy of the weights, in order of their colours' numbers.
+	 */
+	public int[] getWeights() {
+		return Arrays.copyOf(weights, size);
+	}
+}
@@ -0,0 +1,47 @@
+package pl.asie.ctif;
+
+import pl.asie.ctif.colorspace.Colorspace;
+import pl.asie.ctif.platform.Platform;
+
+/**
+ * The settings shared by every step of a conversion: the target platform,
+ * the colourspace colours are compared in, the optimization level, and
+ * whether to print debug output. Immutable, so conversions with different
+ * settings can run at once.
+ */
+public final class ConversionContext {
+	private final Platform platform;
+	private final Colorspace colorspace;
+	private final int optimizationLevel;
+	private final boolean debug;
+
+	public ConversionContext(Platform platform, Colorspace colorspace, int optimizationLevel) {
+		this(platform, colorspace, optimizationLevel, false);
+	}
+
+	public ConversionContext(Platform platform, Colorspace colorspace, int optimizationLevel, boolean debug) {
+		if (platform == null || colorspace == null) {
+			throw new IllegalArgumentException("Platform and colorspace must be set!");
+		}
+		this.platform = platform;
+		this.colorspace = colorspace;
+		this.optimizationLevel = optimizationLevel;
+		this.debug = debug;
+	}
+
+	public Platform getPlatform() {
+		return platform;
+	}
+
+	public Colorspace getColorspace() {
+		return colorspace;
+	}
+
+	public int getOptimizationLevel() {
+		return optimizationLevel;
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+}
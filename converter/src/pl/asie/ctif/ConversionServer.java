@@ -0,0 +1,169 @@
+package pl.asie.ctif;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Serves conversions over HTTP on the loopback interface, so that programs
+ * converting many images pay for JVM startup and JIT warm-up once, and share
+ * the cell cache and palette lookup table between requests.
+ *
+ * Images are POSTed as the body of /convert. Query parameters are options
+ * named like their long command line forms, without the dashes: for example
+ * /convert?mode=cc-paletted&amp;dither-mode=none. Flags, like no-aspect, take
+ * no value. The response is the CTIF file, or with the "preview" parameter,
+ * a ZIP archive holding image.ctif and preview.png. Invalid options and
+ * images are answered with 400 and a plain text message.
+ */
+public class ConversionServer {
+	// Options a request may set; everything else comes from the server.
+	private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList(
+			"mode", "optimization-level", "colorspace", "dither-mode", "dither-type", "dither-level",
+			"width", "height", "no-aspect", "resize-mode", "palette-generator", "palette-sampling-resolution", "seed"
+	));
+
+	private final HttpServer server;
+	private final ExecutorService executorService;
+	private final ConverterEngine engine;
+	private final boolean debug;
+
+	/**
+	 * @param jobs The amount of requests converted at once; more wait in line.
+	 * @param threads The amount of threads shared by all requests; each
+	 *                request uses threads / jobs of them.
+	 * @param cellCache The cell cache shared by all requests, or null.
+	 * @param paletteLookupFile The --palette-lut file shared by all requests, or null.
+	 */
+	public ConversionServer(int port, int jobs, int threads, CellCache cellCache, String paletteLookupFile, boolean debug) throws IOException {
+		this.engine = new ConverterEngine(Math.max(1, threads / jobs), threads);
+		engine.setCellCache(cellCache);
+		engine.setPaletteLookupFile(paletteLookupFile);
+		this.debug = debug;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.executorService = Executors.newFixedThreadPool(jobs);
+		server.setExecutor(executorService);
+		server.createContext("/convert", this::handleConvert);
+	}
+
+	public void start() {
+		server.start();
+		System.err.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/convert");
+	}
+
+	public void stop() {
+		server.stop(0);
+		executorService.shutdown();
+		engine.close();
+	}
+
+	private void handleConvert(HttpExchange exchange) throws IOException {
+		Path input = null, preview = null;
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendText(exchange, 405, "POST the image to convert.");
+				return;
+			}
+
+			List<String> args = new ArrayList<>();
+			Set<String> given = new HashSet<>();
+			boolean wantPreview = false;
+			String query = exchange.getRequestURI().getRawQuery();
+			if (query != null) {
+				for (String pair : query.split("&")) {
+					if (pair.isEmpty()) {
+						continue;
+					}
+					int eq = pair.indexOf('=');
+					String name = URLDecoder.decode(eq >= 0 ? pair.substring(0, eq) : pair, "UTF-8");
+					if (name.equals("preview")) {
+						wantPreview = true;
+					} else if (!OPTIONS.contains(name) || !given.add(name)) {
+						sendText(exchange, 400, "Unsupported or repeated option: " + name);
+						return;
+					} else {
+						args.add("--" + name);
+						if (eq >= 0) {
+							args.add(URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+						}
+					}
+				}
+			}
+
+			input = Files.createTempFile("ctif-input", null);
+			if (wantPreview) {
+				preview = Files.createTempFile("ctif-preview", ".png");
+			}
+			try (InputStream body = exchange.getRequestBody()) {
+				Files.copy(body, input, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			long time = System.currentTimeMillis();
+			CTIFBuffer output;
+			try {
+				output = Main.convertRequest(args, input.toString(), preview != null ? preview.toString() : null, engine, debug);
+			} catch (Main.ConversionException e) {
+				sendText(exchange, 400, e.getMessage());
+				return;
+			}
+			if (debug) {
+				System.err.println(String.format("Converted %s in %d ms", exchange.getRequestURI(), System.currentTimeMillis() - time));
+			}
+
+			if (preview != null) {
+				ByteArrayOutputStream zipData = new ByteArrayOutputStream();
+				try (ZipOutputStream zip = new ZipOutputStream(zipData)) {
+					zip.putNextEntry(new ZipEntry("image.ctif"));
+					output.writeTo(zip);
+					zip.closeEntry();
+					zip.putNextEntry(new ZipEntry("preview.png"));
+					Files.copy(preview, zip);
+					zip.closeEntry();
+				}
+				send(exchange, 200, "application/zip", zipData.toByteArray());
+			} else {
+				send(exchange, 200, "application/octet-stream", output.toByteArray());
+			}
+		} catch (RuntimeException e) {
+			if (debug) {
+				e.printStackTrace();
+			}
+			sendText(exchange, 500, e.toString());
+		} finally {
+			for (Path path : new Path[] { input, preview }) {
+				if (path != null) {
+					Files.deleteIfExists(path);
+				}
+			}
+			exchange.close();
+		}
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+		send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] data) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, data.length);
+		try (OutputStream stream = exchange.getResponseBody()) {
+			stream.write(data);
+		}
+	}
+}
@@ -1,13 +1,21 @@
 package pl.asie.ctif;
 
+import pl.asie.ctif.colorspace.Colorspace;
+import pl.asie.ctif.platform.Platform;
 import pl.asie.ctif.platform.PlatformComputerCraft;
 import pl.asie.ctif.platform.PlatformOpenComputers;
 import pl.asie.ctif.platform.PlatformZXSpectrum;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Converter {
 	public enum DitherMode {
@@ -16,19 +24,65 @@ public class Converter {
 		ORDERED
 	};
 
+	// Palettes with at least this many fixed colours are searched through
+	// paletteIndex, above optimization level 0.
+	private static final int MIN_INDEXED_COLORS = 64;
+
 	private final Color[] palette;
 	private final BufferedImage image;
 	private final DitherMode ditherMode;
 	private final float[] ditherMatrix;
 	private final int ditherMatrixSize, ditherMatrixOffset;
-	private final float[][] img;
-	private final float[][] pal;
+	private final ConversionContext context;
+	private final Platform platform;
+	private final Colorspace colorspace;
+	private final int optimizationLevel;
+	private final int[] rgb;
+	// Colours in the active colourspace, three floats per pixel/entry.
+	private final float[] img;
+	private final float[] pal;
+	// Nearest-colour index over the fixed palette entries, or null.
+	private final PaletteIndex paletteIndex;
+	private final int paletteNeighbours;
+	private PaletteLookupTable paletteLookupTable;
 	private final int cw, ch, pw, ph;
+	private final int ew, eh, quadrantLen;
 	private final int ditherMax;
+	private final int threads;
+
+	// Per-cell results: bg/fg palette indices and quadrant bits, filled in by convertCell.
+	private final int[] cellColors;
+	private final int[] cellQuadrants;
+	private final double[] cellErrors;
+	// With error diffusion, each cell's pixels as converted, including
+	// incoming dither error, laid out cell by cell; otherwise null.
+	private final float[] cellPixels;
+	private boolean converted;
+	private Converter previousFrame;
+	private float temporalThreshold;
+	private Converter incrementalSource;
+	private final AtomicInteger reusedCells = new AtomicInteger();
+	private CellCache cellCache;
+	private long cellCacheSettings;
+	private final ConverterEngine engine;
+
+	public Converter(ConversionContext context, Color[] colors, BufferedImage image, DitherMode ditherMode, float[] ditherMatrix) {
+		this(context, colors, image, ditherMode, ditherMatrix, 1);
+	}
 
-	public Converter(Color[] colors, BufferedImage image, DitherMode ditherMode, float[] ditherMatrix) {
+	public Converter(ConversionContext context, Color[] colors, BufferedImage image, DitherMode ditherMode, float[] ditherMatrix, int threads) {
+		this(null, context, colors, image, ditherMode, ditherMatrix, threads);
+	}
+
+	/**
+	 * @param engine The engine providing the thread pool and scratch buffers,
+	 *               or null to use the common pool and the buffers shared by
+	 *               all converters made without an engine.
+	 */
+	Converter(ConverterEngine engine, ConversionContext context, Color[] colors, BufferedImage image, DitherMode ditherMode, float[] ditherMatrix, int threads) {
 		int i = 0;
 
+		this.engine = engine != null ? engine : ConverterEngine.SHARED;
 		this.ditherMode = ditherMode;
 		this.ditherMatrix = ditherMatrix;
 		if (ditherMode == DitherMode.ORDERED) {
@@ -44,388 +98,1016 @@ public class Converter {
 
 		this.image = image;
 		this.palette = colors;
+		this.context = context;
+		this.platform = context.getPlatform();
+		this.colorspace = context.getColorspace();
+		this.optimizationLevel = context.getOptimizationLevel();
+		this.threads = Math.max(1, threads);
 
-		this.img = new float[image.getWidth() * image.getHeight()][3];
-		this.pal = new float[colors.length][3];
+		this.img = new float[image.getWidth() * image.getHeight() * 3];
+		this.pal = new float[colors.length * 3];
 
-		this.pw = Main.PLATFORM.getCharWidth();
-		this.ph = Main.PLATFORM.getCharHeight();
+		this.pw = platform.getCharWidth();
+		this.ph = platform.getCharHeight();
 		this.cw = image.getWidth() / pw;
 		this.ch = image.getHeight() / ph;
+		this.ew = (pw + ditherMatrixOffset * 2);
+		this.eh = (ph + ditherMatrixOffset * 2);
+		this.quadrantLen = (pw * ph + 7) / 8;
 
-		for (i = 0; i < img.length; i++) {
-			img[i] = Main.COLORSPACE.fromRGB(image.getRGB(i % image.getWidth(), i / image.getWidth()));
-		}
+		this.cellColors = new int[cw * ch * 2];
+		this.cellQuadrants = new int[cw * ch * quadrantLen];
+		this.cellErrors = new double[cw * ch];
+		this.cellPixels = ditherMode == DitherMode.ERROR ? new float[cw * ch * pw * ph * 3] : null;
+
+		this.rgb = Utils.getRGB(image);
+		colorspace.fromRGB(rgb, 0, img, 0, image.getWidth() * image.getHeight());
 
+		int[] colorsRGB = new int[colors.length];
 		for (i = 0; i < colors.length; i++) {
-			pal[i] = Main.COLORSPACE.fromRGB(colors[i].getRGB());
+			colorsRGB[i] = colors[i].getRGB();
 		}
-	}
+		colorspace.fromRGB(colorsRGB, 0, pal, 0, colors.length);
 
-	public BufferedImage write(OutputStream stream) throws IOException {
-		BufferedImage output = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
-
-		stream.write('C');
-		stream.write('T');
-		stream.write('I');
-		stream.write('F');
-
-		stream.write(1); // Header version
-		stream.write(0); // Platform variant (0 - default)
-		stream.write(Main.PLATFORM.platformId);
-		stream.write(Main.PLATFORM.platformId >> 8); // Platform ID
-		stream.write(cw & 0xFF);
-		stream.write(cw >> 8); // Width in chars
-		stream.write(ch & 0xFF);
-		stream.write(ch >> 8); // Height in chars
-		stream.write(pw); // Char width
-		stream.write(ph); // Char height
-
-		stream.write(palette.length > 16 ? 8 : 4); // BPP (byte)
-
-		if (Main.PLATFORM.getCustomColorCount() > 0) {
-			stream.write(3); // Palette entry size
-			stream.write(16);
-			stream.write(0); // Palette array size
-			for (int i = 0; i < 16; i++) {
-				stream.write(palette[i].getRGB() & 0xFF);
-				stream.write((palette[i].getRGB() >> 8) & 0xFF);
-				stream.write((palette[i].getRGB() >> 16) & 0xFF);
-			}
+		int fixedColors = colors.length - platform.getCustomColorCount();
+		if (optimizationLevel > 0 && fixedColors >= MIN_INDEXED_COLORS) {
+			this.paletteIndex = new PaletteIndex(pal, platform.getCustomColorCount(), colors.length);
+			this.paletteNeighbours = getPaletteNeighbours(optimizationLevel);
 		} else {
-			stream.write(0); // Palette array size
-			stream.write(0);
-			stream.write(0); // Palette entry size
+			this.paletteIndex = null;
+			this.paletteNeighbours = 0;
+		}
+	}
+
+	/**
+	 * @return How many of each pixel's nearest fixed colours are tried as
+	 * cell colours. On photos, 12 and up give the same result as larger
+	 * candidate sets.
+	 */
+	private static int getPaletteNeighbours(int optimizationLevel) {
+		switch (optimizationLevel) {
+			case 1:
+				return 16;
+			case 2:
+				return 12;
+			case 3:
+				return 8;
+			default:
+				return 6;
 		}
+	}
 
-		writePixelData(stream, output);
+	/**
+	 * Converts the image and writes it as a CTIF file, closing the stream.
+	 *
+	 * @return The preview image.
+	 */
+	public BufferedImage write(OutputStream stream) throws IOException {
+		CTIFBuffer buffer = new CTIFBuffer(getEncodedSize());
+		BufferedImage output = write(buffer);
+		buffer.writeTo(stream);
 		stream.close();
 		return output;
 	}
 
-	private void addQuantError(float[][] pixelArray, int x, int y, int w, int h, float[] expected, float[] received, float mul) {
+	/**
+	 * Converts the image and writes it as a CTIF file. The channel is left
+	 * open.
+	 *
+	 * @return The preview image.
+	 */
+	public BufferedImage write(WritableByteChannel channel) throws IOException {
+		CTIFBuffer buffer = new CTIFBuffer(getEncodedSize());
+		BufferedImage output = write(buffer);
+		buffer.writeTo(channel);
+		return output;
+	}
+
+	/**
+	 * Converts the image and appends it to buffer as a CTIF file.
+	 *
+	 * @return The preview image.
+	 */
+	public BufferedImage write(CTIFBuffer buffer) {
+		BufferedImage output = createPreviewImage();
+
+		buffer.ensureCapacity(getEncodedSize());
+		writeHeader(buffer, 1);
+		writePixelData(buffer, output);
+		return output;
+	}
+
+	/**
+	 * @return The size of the version 1 CTIF file of this image, in bytes.
+	 */
+	int getEncodedSize() {
+		return 18 + (platform.getCustomColorCount() > 0 ? 48 : 0) + getCellCount() * getCellDataLength();
+	}
+
+	/**
+	 * Writes the CTIF header, including the custom palette if the platform
+	 * has one.
+	 */
+	void writeHeader(CTIFBuffer buffer, int version) {
+		buffer.write('C');
+		buffer.write('T');
+		buffer.write('I');
+		buffer.write('F');
+
+		buffer.write(version); // Header version
+		buffer.write(0); // Platform variant (0 - default)
+		buffer.writeShort(platform.platformId); // Platform ID
+		buffer.writeShort(cw); // Width in chars
+		buffer.writeShort(ch); // Height in chars
+		buffer.write(pw); // Char width
+		buffer.write(ph); // Char height
+
+		buffer.write(palette.length > 16 ? 8 : 4); // BPP (byte)
+
+		if (platform.getCustomColorCount() > 0) {
+			buffer.write(3); // Palette entry size
+			buffer.writeShort(16); // Palette array size
+			writePalette(buffer);
+		} else {
+			buffer.write(0); // Palette entry size
+			buffer.writeShort(0); // Palette array size
+		}
+	}
+
+	/**
+	 * Writes the 16 custom palette entries, without any header.
+	 */
+	void writePalette(CTIFBuffer buffer) {
+		for (int i = 0; i < 16; i++) {
+			int rgb = palette[i].getRGB();
+			buffer.write(rgb & 0xFF);
+			buffer.write((rgb >> 8) & 0xFF);
+			buffer.write((rgb >> 16) & 0xFF);
+		}
+	}
+
+	Color[] getPalette() {
+		return palette;
+	}
+
+	/**
+	 * Enables temporal coherence for animations: each cell first tries the
+	 * colours chosen for it in the previous frame, and keeps them without a
+	 * full search if the error per pixel grows by at most threshold. Frames
+	 * with a different size, palette or dither mode are ignored.
+	 */
+	public void setPreviousFrame(Converter previous, float threshold) {
+		if (previous != null && previous.cw == cw && previous.ch == ch
+				&& previous.ditherMode == ditherMode && Arrays.equals(previous.palette, palette)) {
+			previous.convertCells();
+			this.previousFrame = previous;
+			this.temporalThreshold = threshold;
+		} else {
+			this.previousFrame = null;
+		}
+	}
+
+	/**
+	 * Enables incremental conversion: cells whose input, including any
+	 * incoming dither error, is identical to the same cell of the previous
+	 * conversion reuse its result instead of searching again.
+	 *
+	 * @return false if the previous conversion used a different size,
+	 * palette or settings, in which case nothing is reused.
+	 */
+	public boolean setIncrementalSource(Converter previous) {
+		if (previous != null && previous.image.getWidth() == image.getWidth() && previous.image.getHeight() == image.getHeight()
+				&& previous.platform == platform && previous.colorspace == colorspace
+				&& previous.optimizationLevel == optimizationLevel && previous.ditherMode == ditherMode
+				&& Arrays.equals(previous.ditherMatrix, ditherMatrix) && Arrays.equals(previous.palette, palette)
+				&& previous.paletteLookupTable == paletteLookupTable) {
+			previous.convertCells();
+			this.incrementalSource = previous;
+			return true;
+		} else {
+			this.incrementalSource = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Looks up and stores cell results in the given cache. Only used with
+	 * NONE and ORDERED dithering, as with error diffusion a cell's result
+	 * also depends on the cells converted before it.
+	 */
+	public void setCellCache(CellCache cache) {
+		if (cache != null && ditherMode != DitherMode.ERROR) {
+			this.cellCache = cache;
+			this.cellCacheSettings = computeCacheSettings();
+		} else {
+			this.cellCache = null;
+		}
+	}
+
+	/**
+	 * @return A lookup table of the nearest fixed palette colours, for
+	 * setPaletteLookupTable, or null if this conversion does not narrow down
+	 * the palette per pixel.
+	 */
+	public PaletteLookupTable createPaletteLookupTable() {
+		if (paletteIndex == null) {
+			return null;
+		}
+		return PaletteLookupTable.build(paletteIndex, colorspace, getPaletteNeighbours(1), getPaletteFingerprint());
+	}
+
+	/**
+	 * Takes the candidate colours near each pixel from a lookup table,
+	 * instead of searching the palette. The table is quantised, so results
+	 * can differ slightly from a search.
+	 *
+	 * @return false if the table was built for other fixed palette colours,
+	 * another colourspace or fewer neighbours, in which case it is not used.
+	 */
+	public boolean setPaletteLookupTable(PaletteLookupTable table) {
+		if (table != null && paletteIndex != null && table.getFingerprint() == getPaletteFingerprint()
+				&& table.getNeighbours() >= paletteNeighbours) {
+			this.paletteLookupTable = table;
+		} else {
+			this.paletteLookupTable = null;
+		}
+		if (cellCache != null) {
+			this.cellCacheSettings = computeCacheSettings();
+		}
+		return paletteLookupTable != null;
+	}
+
+	private long getPaletteFingerprint() {
+		return PaletteLookupTable.fingerprint(pal, platform.getCustomColorCount(), palette.length, colorspace);
+	}
+
+	/**
+	 * @return The amount of cells taken from the incremental source.
+	 */
+	public int getReusedCellCount() {
+		return reusedCells.get();
+	}
+
+	ConversionContext getContext() {
+		return context;
+	}
+
+	private void addQuantError(float[] pixelArray, int x, int y, int w, int h, float[] expected, int expectedOffset, int receivedOffset, float mul) {
 		if (x >= 0 && y >= 0 && x < w && y < h) {
-			Utils.addQuantError(pixelArray[y*w+x], expected, received, mul);
+			Utils.addQuantError(pixelArray, (y*w+x) * 3, expected, expectedOffset, pal, receivedOffset, mul);
 		}
 	}
 
-	private void writePixelData(OutputStream stream, BufferedImage output) throws IOException {
-		int ew = (pw + ditherMatrixOffset * 2);
-		int eh = (ph + ditherMatrixOffset * 2);
+	/**
+	 * Scratch buffers used while converting a single cell. Each thread
+	 * converting cells needs its own instance. They can be reused by any
+	 * conversion they fit; the boolean arrays are left all false after use.
+	 */
+	static final class CellBuffers {
+		private final int pw, ph, ew, eh, paletteLength, neighbourCount, customColors;
+		final float[] pixels;
+		final float[] bcea;
+		final float[] tPixels;
+		final float[] errors;
+		final int[] bcq;
+		final int[] cq;
+		final float[] colA = new float[3];
+		final int[] palMap;
+		final boolean[] palMapUsed;
+		final int[] neighbours;
+		final double[] neighbourDistances;
+		final float[] distances;
+		final float[] minDistances;
+		final int[] nearestColors;
+		final int[] cellColors;
+		final boolean[] cellColorsUsed;
+		final CellCache.Key cacheKey;
 
-		int quadrantLen = (pw * ph + 7) / 8;
+		CellBuffers(Converter converter) {
+			this.pw = converter.pw;
+			this.ph = converter.ph;
+			this.ew = converter.ew;
+			this.eh = converter.eh;
+			this.paletteLength = converter.palette.length;
+			this.neighbourCount = converter.paletteNeighbours;
+			this.customColors = converter.platform.getCustomColorCount();
 
-		float[][] pixels = new float[pw * ph][];
-		float[][] bcea = new float[ew * eh][3];
-		float[][] tPixels = new float[pixels.length][3];
-		float[][] errors = new float[ew * eh][3];
-		int[] bcq = new int[quadrantLen];
-		int[] cq = new int[quadrantLen];
+			pixels = new float[pw * ph * 3];
+			bcea = new float[ew * eh * 3];
+			tPixels = new float[pixels.length];
+			errors = new float[ew * eh * 3];
+			bcq = new int[converter.quadrantLen];
+			cq = new int[converter.quadrantLen];
+			palMap = new int[paletteLength];
+			palMapUsed = new boolean[paletteLength];
+			neighbours = new int[neighbourCount];
+			neighbourDistances = new double[neighbourCount];
+			distances = new float[paletteLength * pw * ph];
+			minDistances = new float[pw * ph];
+			nearestColors = new int[pw * ph];
+			cellColors = new int[pw * ph];
+			cellColorsUsed = new boolean[paletteLength];
+			cacheKey = new CellCache.Key(0, 0, new int[pw * ph]);
 
-		float[] colA = new float[3];
+			for (int i = 0; i < customColors; i++)
+				palMap[i] = i;
+		}
 
-		boolean usePalMap = Main.OPTIMIZATION_LEVEL > 0 && Main.PLATFORM instanceof PlatformOpenComputers && ((PlatformOpenComputers) Main.PLATFORM).tier == 3;
-		int[] palMap = new int[palette.length];
-		int palMapLength;
-		for (int i = 0; i < 16; i++)
-			palMap[i] = i;
-		int t3OffRed = Main.OPTIMIZATION_LEVEL <= 1 ? 3 : (Main.OPTIMIZATION_LEVEL == 2 ? 2 : 1);
-		int t3OffGreen = Main.OPTIMIZATION_LEVEL <= 1 ? 3 : (Main.OPTIMIZATION_LEVEL <= 3 ? 2 : 1);
-		int t3OffBlue = Main.OPTIMIZATION_LEVEL <= 1 ? 2 : 1;
-
-		for (int cy = 0; cy < ch; cy++) {
-			for (int cx = 0; cx < cw; cx++) {
-				for (int py = 0; py < ph; py++) {
-					for (int px = 0; px < pw; px++) {
-						pixels[py * pw + px] = img[(cy * ph + py) * image.getWidth() + cx * pw + px];
+		boolean fits(Converter converter) {
+			return pw == converter.pw && ph == converter.ph && ew == converter.ew && eh == converter.eh
+					&& paletteLength == converter.palette.length && neighbourCount == converter.paletteNeighbours
+					&& customColors == converter.platform.getCustomColorCount();
+		}
+	}
+
+	private CellBuffers getCellBuffers() {
+		return engine.getCellBuffers(this);
+	}
+
+	/**
+	 * Converts rows of cells in parallel. Only valid when no state is shared
+	 * between cells, i.e. outside of error diffusion dithering.
+	 */
+	@SuppressWarnings("serial")
+	private final class CellRowTask extends RecursiveAction {
+		private final int minY, maxY;
+
+		CellRowTask(int minY, int maxY) {
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxY - minY <= 1) {
+				CellBuffers buffers = getCellBuffers();
+				for (int cy = minY; cy < maxY; cy++) {
+					for (int cx = 0; cx < cw; cx++) {
+						convertCell(cx, cy, buffers);
 					}
 				}
+			} else {
+				int midY = (minY + maxY) >>> 1;
+				invokeAll(new CellRowTask(minY, midY), new CellRowTask(midY, maxY));
+			}
+		}
+	}
 
-				int bci1 = 0, bci2 = 0;
-				double bcerr = Double.MAX_VALUE;
-
-				if (usePalMap) {
-					palMapLength = 16;
-					int[] colorsUsed = new int[palette.length];
-					for (int py = 0; py < ph; py++) {
-						for (int px = 0; px < pw; px++) {
-							int rgb = image.getRGB(cx * pw + px, cy * ph + py);
-							int red = (((rgb >> 16) & 0xFF) * 6 / 256);
-							int green = (((rgb >> 8) & 0xFF) * 8 / 256);
-							int blue = ((rgb & 0xFF) * 5 / 256);
-							for (int rr = red - t3OffRed; rr <= red + t3OffRed; rr++)
-								for (int rg = green - t3OffGreen; rg <= green + t3OffGreen; rg++)
-									for (int rb = blue - t3OffBlue; rb <= blue + t3OffBlue; rb++)
-										if (rr >= 0 && rg >= 0 && rb >= 0 && rr < 6 && rg < 8 && rb < 5) {
-											int col = 16 + rr * 40 + rg * 5 + rb;
-											if (colorsUsed[col] == 0) {
-												palMap[palMapLength++] = col;
-												colorsUsed[col] = 1;
-											}
-										}
-						}
-					}
+	/**
+	 * Converts the cells of one wavefront step in parallel. A step contains
+	 * every cell with cx + 2 * cy == step; see canUseWavefront.
+	 */
+	@SuppressWarnings("serial")
+	private final class WavefrontTask extends RecursiveAction {
+		private final int step, minY, maxY, grain;
+
+		WavefrontTask(int step, int minY, int maxY, int grain) {
+			this.step = step;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxY - minY <= grain) {
+				CellBuffers buffers = getCellBuffers();
+				for (int cy = minY; cy < maxY; cy++) {
+					convertCell(step - cy * 2, cy, buffers);
+				}
+			} else {
+				int midY = (minY + maxY) >>> 1;
+				invokeAll(new WavefrontTask(step, minY, midY, grain), new WavefrontTask(step, midY, maxY, grain));
+			}
+		}
+	}
+
+	/**
+	 * Error diffusion only pushes error right and down. As long as a cell's
+	 * error does not reach past its direct neighbours, cell (cx, cy) only
+	 * depends on (cx - 1, cy) and (cx + 1, cy - 1), so all cells with the
+	 * same cx + 2 * cy can be converted concurrently without touching the
+	 * same pixels, and every pixel still receives its error in serial order.
+	 */
+	private boolean canUseWavefront() {
+		return ditherMatrixOffset * 2 <= pw && ditherMatrixOffset <= ph;
+	}
+
+	/**
+	 * Computes the error of drawing the current cell with colours ci1 and ci2,
+	 * leaving the quadrant bits in buffers.cq and, for error diffusion, the
+	 * error to push to neighbouring pixels in buffers.errors. Gives up early
+	 * once the error reaches bcerr.
+	 */
+	private double evaluatePair(int cx, int cy, int ci1, int ci2, double bcerr, CellBuffers buffers) {
+		float[] pixels = buffers.pixels;
+		float[] tPixels = buffers.tPixels;
+		float[] errors = buffers.errors;
+		int[] cq = buffers.cq;
+		float[] colA = buffers.colA;
+		float[] distances = buffers.distances;
+		int pixelCount = pw * ph;
+		int col1 = ci1 * 3;
+		int col2 = ci2 * 3;
+		double cerr = 0;
+
+		for (int i = 0; i < quadrantLen; i++) {
+			cq[i] = 0;
+		}
+
+		if (ditherMode == DitherMode.NONE) {
+			int off1 = ci1 * pixelCount;
+			int off2 = ci2 * pixelCount;
+			for (int i = 0; i < pixelCount; i++) {
+				double cerr1 = distances[off1 + i];
+				double cerr2 = distances[off2 + i];
+				if (cerr2 < cerr1) {
+					int pos = (pw * ph - 1 - i);
+					cq[pos >> 3] |= (1 << (pos & 7));
+					cerr += cerr2;
 				} else {
-					palMapLength = palette.length;
+					cerr += cerr1;
 				}
 
-				boolean bcqFound = false;
+				if (cerr >= bcerr)
+					break;
+			}
+		} else if (ditherMode == DitherMode.ERROR) {
+			System.arraycopy(pixels, 0, tPixels, 0, pixelCount * 3);
+			Arrays.fill(errors, 0);
 
-				if (ditherMode == DitherMode.NONE && Main.OPTIMIZATION_LEVEL >= 3) {
-					int[] colors = new int[pixels.length];
-					int colorCount = 0;
-					boolean[] uColors = new boolean[palette.length];
+			for (int i = 0; i < pixelCount; i++) {
+				int col = i * 3;
+				int colR;
+				double cerr1 = Utils.getColorDistanceSq(tPixels, col, pal, col1);
+				double cerr2 = Utils.getColorDistanceSq(tPixels, col, pal, col2);
+				if (cerr2 < cerr1) {
+					int pos = (pw * ph - 1 - i);
+					cq[pos >> 3] |= (1 << (pos & 7));
+					cerr += cerr2;
+					colR = col2;
+				} else {
+					cerr += cerr1;
+					colR = col1;
+				}
 
-					for (int i = 0; i < pixels.length; i++) {
-						double bestDist = Double.MAX_VALUE;
-						int bestCol = 0;
+				if (cerr >= bcerr)
+					break;
 
-						for (int cim1 = 0; cim1 < palMapLength; cim1++) {
-							int ci1 = usePalMap ? palMap[cim1] : cim1;
-							float[] col1 = pal[ci1];
-							double dist = Utils.getColorDistanceSq(col1, pixels[i]);
-							if (dist < bestDist) {
-								bestCol = ci1;
-								bestDist = dist;
-							}
-						}
+				int qx = (i % pw);
+				int qy = (i / pw);
 
-						if (!uColors[bestCol]) {
-							uColors[bestCol] = true;
-							colors[colorCount++] = bestCol;
-						}
+				int ip = ditherMatrixSize * ditherMatrixOffset;
+				for (int iy = 0; iy < ditherMatrixSize - ditherMatrixOffset; iy++) {
+					for (int ix = -ditherMatrixOffset; ix < ditherMatrixSize - ditherMatrixOffset; ix++) {
+						addQuantError(tPixels, qx + ix, qy + iy, pw, ph, tPixels, col, colR, ditherMatrix[ip]);
+						addQuantError(errors, qx + ix + ditherMatrixOffset, qy + iy + ditherMatrixOffset, ew, eh, tPixels, col, colR, ditherMatrix[ip]);
+						ip++;
 					}
+				}
+			}
+		} else {
+			// http://bisqwit.iki.fi/story/howto/dither/jy/
 
-					if (colorCount <= 2) {
-						bci1 = colors[0];
-						bci2 = colors[1];
+			float c10 = pal[col1], c11 = pal[col1 + 1], c12 = pal[col1 + 2];
+			float c20 = pal[col2], c21 = pal[col2 + 1], c22 = pal[col2 + 2];
 
-						for (int i = 0; i < bcq.length; i++)
-							bcq[i] = 0;
+			cerr += Utils.getColorDistanceSq(pal, col1, pal, col2) * 0.1 * pixelCount;
 
-						for (int i = 0; i < pixels.length; i++) {
-							int pos = (pw * ph - 1 - i);
-							double dist0 = Utils.getColorDistanceSq(pal[bci1], pixels[i]);
-							double dist1 = Utils.getColorDistanceSq(pal[bci2], pixels[i]);
-							if (dist1 < dist0) {
-								bcq[pos >> 3] |= (1 << (pos & 7));
-							}
-						}
+			for (int i = 0; i < pixelCount; i++) {
+				float c0 = pixels[i * 3], c1 = pixels[i * 3 + 1], c2 = pixels[i * 3 + 2];
+				int qx = (i % pw);
+				int qy = (i / pw);
 
-						bcqFound = true;
-					}
+				float jf =
+						(c0 * c10 - c0 * c20 - c10 * c20 + c20 * c20 +
+								c1 * c11 - c1 * c21 - c11 * c21 + c21 * c21 +
+								c2 * c12 - c2 * c22 - c12 * c22 + c22 * c22) /
+								((c10 - c20) * (c10 - c20) +
+										(c11 - c21) * (c11 - c21) +
+										(c12 - c22) * (c12 - c22));
+				int birat = ditherMax - Math.round(jf * ditherMax);
+				if (birat < 0) birat = 0;
+				else if (birat > ditherMax) birat = ditherMax;
+
+				colA[0] = (c20 * birat + c10 * (ditherMax - birat)) / ditherMax;
+				colA[1] = (c21 * birat + c11 * (ditherMax - birat)) / ditherMax;
+				colA[2] = (c22 * birat + c12 * (ditherMax - birat)) / ditherMax;
+				cerr += Utils.getColorDistanceSq(pixels, i * 3, colA, 0);
+
+				if (cerr >= bcerr)
+					break;
+
+				int threshold = (int) ditherMatrix[((cy * ph + qy) % ditherMatrixSize) * ditherMatrixSize + ((cx * pw + qx) % ditherMatrixSize)];
+				if (threshold < birat) {
+					int pos = (pw * ph - 1 - i);
+					cq[pos >> 3] |= (1 << (pos & 7));
 				}
+			}
+		}
 
-				if (!bcqFound) {
-					for (int cim1 = 1; cim1 < palMapLength; cim1++) {
-						if (bcerr == 0) break;
-						int ci1 = usePalMap ? palMap[cim1] : cim1;
-						float[] col1 = pal[ci1];
+		return cerr;
+	}
 
-						for (int cim2 = (Main.PLATFORM instanceof PlatformZXSpectrum) ? (cim1 >= 8 ? 8 : 0) : 0; cim2 < cim1; cim2++) {
-							if (bcerr == 0) break;
-							int ci2 = usePalMap ? palMap[cim2] : cim2;
-							float[] col2 = pal[ci2];
-							double cerr = 0;
+	private void convertCell(int cx, int cy, CellBuffers buffers) {
+		float[] pixels = buffers.pixels;
+		float[] bcea = buffers.bcea;
+		float[] errors = buffers.errors;
+		int[] bcq = buffers.bcq;
+		int[] cq = buffers.cq;
+		int[] palMap = buffers.palMap;
+		float[] distances = buffers.distances;
+		float[] minDistances = buffers.minDistances;
+		int[] nearestColors = buffers.nearestColors;
+		int pixelCount = pw * ph;
+		int palMapLength;
+		boolean usePalMap = paletteIndex != null;
 
-							for (int i = 0; i < quadrantLen; i++) {
-								cq[i] = 0;
-							}
+		for (int py = 0; py < ph; py++) {
+			System.arraycopy(img, ((cy * ph + py) * image.getWidth() + cx * pw) * 3, pixels, py * pw * 3, pw * 3);
+		}
 
-							if (ditherMode == DitherMode.NONE) {
-								for (int i = 0; i < pixels.length; i++) {
-									float[] col = pixels[i];
-									double cerr1 = Utils.getColorDistanceSq(col, col1);
-									double cerr2 = Utils.getColorDistanceSq(col, col2);
-									if (cerr2 < cerr1) {
-										int pos = (pw * ph - 1 - i);
-										cq[pos >> 3] |= (1 << (pos & 7));
-										cerr += cerr2;
-									} else {
-										cerr += cerr1;
-									}
-
-									if (cerr >= bcerr)
-										break;
-								}
-							} else if (ditherMode == DitherMode.ERROR) {
-								for (int i = 0; i < pixels.length; i++) {
-									tPixels[i][0] = pixels[i][0];
-									tPixels[i][1] = pixels[i][1];
-									tPixels[i][2] = pixels[i][2];
-								}
-
-								for (int i = 0; i < errors.length; i++) {
-									errors[i][0] = 0;
-									errors[i][1] = 0;
-									errors[i][2] = 0;
-								}
-
-								for (int i = 0; i < tPixels.length; i++) {
-									float[] col = tPixels[i];
-									float[] colR;
-									double cerr1 = Utils.getColorDistanceSq(col, col1);
-									double cerr2 = Utils.getColorDistanceSq(col, col2);
-									if (cerr2 < cerr1) {
-										int pos = (pw * ph - 1 - i);
-										cq[pos >> 3] |= (1 << (pos & 7));
-										cerr += cerr2;
-										colR = col2;
-									} else {
-										cerr += cerr1;
-										colR = col1;
-									}
-
-									if (cerr >= bcerr)
-										break;
-
-									int qx = (i % pw);
-									int qy = (i / pw);
-
-									int ip = ditherMatrixSize * ditherMatrixOffset;
-									for (int iy = 0; iy < ditherMatrixSize - ditherMatrixOffset; iy++) {
-										for (int ix = -ditherMatrixOffset; ix < ditherMatrixSize - ditherMatrixOffset; ix++) {
-											addQuantError(tPixels, qx + ix, qy + iy, pw, ph, col, colR, ditherMatrix[ip]);
-											addQuantError(errors, qx + ix + ditherMatrixOffset, qy + iy + ditherMatrixOffset, ew, eh, col, colR, ditherMatrix[ip]);
-											ip++;
-										}
-									}
-								}
-							} else {
-								// http://bisqwit.iki.fi/story/howto/dither/jy/
-
-								cerr += Utils.getColorDistanceSq(col1, col2) * 0.1 * pixels.length;
-
-								for (int i = 0; i < pixels.length; i++) {
-									float[] col = pixels[i];
-									int qx = (i % pw);
-									int qy = (i / pw);
-
-									float jf =
-											(col[0] * col1[0] - col[0] * col2[0] - col1[0] * col2[0] + col2[0] * col2[0] +
-													col[1] * col1[1] - col[1] * col2[1] - col1[1] * col2[1] + col2[1] * col2[1] +
-													col[2] * col1[2] - col[2] * col2[2] - col1[2] * col2[2] + col2[2] * col2[2]) /
-													((col1[0] - col2[0]) * (col1[0] - col2[0]) +
-															(col1[1] - col2[1]) * (col1[1] - col2[1]) +
-															(col1[2] - col2[2]) * (col1[2] - col2[2]));
-									int birat = ditherMax - Math.round(jf * ditherMax);
-									if (birat < 0) birat = 0;
-									else if (birat > ditherMax) birat = ditherMax;
-
-									colA[0] = (col2[0] * birat + col1[0] * (ditherMax - birat)) / ditherMax;
-									colA[1] = (col2[1] * birat + col1[1] * (ditherMax - birat)) / ditherMax;
-									colA[2] = (col2[2] * birat + col1[2] * (ditherMax - birat)) / ditherMax;
-									cerr += Utils.getColorDistanceSq(col, colA);
-
-									if (cerr >= bcerr)
-										break;
-
-									int threshold = (int) ditherMatrix[((cy * ph + qy) % ditherMatrixSize) * ditherMatrixSize + ((cx * pw + qx) % ditherMatrixSize)];
-									if (threshold < birat) {
-										int pos = (pw * ph - 1 - i);
-										cq[pos >> 3] |= (1 << (pos & 7));
-									}
-								}
-							}
+		int cellIndex = cy * cw + cx;
+		if (cellPixels != null) {
+			System.arraycopy(pixels, 0, cellPixels, cellIndex * pixelCount * 3, pixelCount * 3);
+		}
 
-							if (cerr < bcerr) {
-								bci1 = ci1;
-								bci2 = ci2;
-								bcerr = cerr;
-								if (ditherMode == DitherMode.ERROR) {
-									for (int i = 0; i < errors.length; i++) {
-										bcea[i][0] = errors[i][0];
-										bcea[i][1] = errors[i][1];
-										bcea[i][2] = errors[i][2];
-									}
-								}
-								for (int i = 0; i < quadrantLen; i++) {
-									bcq[i] = cq[i];
-								}
-							}
-						}
-					}
+		if (incrementalSource != null && incrementalSource.cellMatches(cx, cy, rgb, pixels)) {
+			reuseCell(cx, cy, incrementalSource, Double.MAX_VALUE, buffers);
+			reusedCells.incrementAndGet();
+			return;
+		}
 
-					if (ditherMode == DitherMode.ERROR) {
-						for (int iy = 0; iy < eh; iy++) {
-							int ry = cy * ph + iy - ditherMatrixOffset;
-							if (ry >= 0 && ry < ch * ph) {
-								for (int ix = 0; ix < ew; ix++) {
-									int rx = cx * pw + ix - ditherMatrixOffset;
-									if (rx >= 0 && rx < cw * pw) {
-										for (int i = 0; i < 3; i++) {
-											img[ry * cw * pw + rx][i] += bcea[iy * ew + ix][i];
-										}
-									}
-								}
-							}
-						}
+		CellCache.Key cacheKey = null;
+		if (cellCache != null) {
+			cacheKey = setCacheKey(cx, cy, buffers);
+			CellCache.Result result = cellCache.get(cacheKey);
+			if (result != null) {
+				System.arraycopy(result.quadrants, 0, buffers.bcq, 0, quadrantLen);
+				storeCell(cx, cy, result.color1, result.color2, result.error, buffers);
+				return;
+			}
+		}
+
+		if (previousFrame != null && reuseCell(cx, cy, previousFrame,
+				previousFrame.cellErrors[cellIndex] + temporalThreshold * pw * ph, buffers)) {
+			return;
+		}
+
+		int bci1 = 0, bci2 = 0;
+		double bcerr = Double.MAX_VALUE;
+
+		if (usePalMap) {
+			// Only the custom colours and each pixel's nearest fixed colours
+			// are worth trying.
+			boolean[] palMapUsed = buffers.palMapUsed;
+			palMapLength = platform.getCustomColorCount();
+			for (int i = 0; i < pixelCount; i++) {
+				int count;
+				if (paletteLookupTable != null) {
+					int rgb = ditherMode == DitherMode.ERROR ? colorspace.toRGB(pixels, i * 3)
+							: this.rgb[(cy * ph + i / pw) * image.getWidth() + cx * pw + i % pw];
+					for (count = 0; count < paletteNeighbours; count++) {
+						buffers.neighbours[count] = paletteLookupTable.getNeighbour(rgb, count);
 					}
+				} else {
+					count = paletteIndex.findNearest(pixels, i * 3, paletteNeighbours, buffers.neighbours, buffers.neighbourDistances);
 				}
-
-				int[] quadrant = bcq;
-				int bgIndex = bci1;
-				int fgIndex = bci2;
-				if (bgIndex == fgIndex) {
-					for (int i = 0; i < quadrantLen; i++) quadrant[i] = 0;
+				for (int j = 0; j < count; j++) {
+					int col = buffers.neighbours[j];
+					if (!palMapUsed[col]) {
+						palMap[palMapLength++] = col;
+						palMapUsed[col] = true;
+					}
 				}
+			}
+			for (int i = platform.getCustomColorCount(); i < palMapLength; i++) {
+				palMapUsed[palMap[i]] = false;
+			}
+		} else {
+			palMapLength = palette.length;
+		}
 
-				if (Main.PLATFORM instanceof PlatformComputerCraft) {
-					if ((quadrant[0] & 0x01) != 0) {
-						int t = fgIndex;
-						fgIndex = bgIndex;
-						bgIndex = t;
-						quadrant[0] ^= 0x3F;
-					}
-				} else if (Main.PLATFORM instanceof PlatformOpenComputers && pw * ph > 2) {
-					if (bgIndex > fgIndex) {
-						int t = fgIndex;
-						fgIndex = bgIndex;
-						bgIndex = t;
-						quadrant[0] ^= (1 << (pw * ph)) - 1;
+		boolean bcqFound = false;
+
+		if (ditherMode == DitherMode.NONE) {
+			// Without dithering, pixel colours do not change during the search,
+			// so the pixel x palette distances can be computed once per cell.
+			// distances[ci * pixelCount + i] is the distance from pixel i
+			// to palette entry ci; minDistances[i] is the smallest of those,
+			// to entry nearestColors[i].
+			for (int i = 0; i < pixelCount; i++) {
+				minDistances[i] = Float.MAX_VALUE;
+			}
+
+			for (int cim1 = 0; cim1 < palMapLength; cim1++) {
+				int ci1 = usePalMap ? palMap[cim1] : cim1;
+				int off = ci1 * pixelCount;
+				for (int i = 0; i < pixelCount; i++) {
+					float dist = (float) Utils.getColorDistanceSq(pal, ci1 * 3, pixels, i * 3);
+					distances[off + i] = dist;
+					if (dist < minDistances[i]) {
+						minDistances[i] = dist;
+						nearestColors[i] = ci1;
 					}
 				}
+			}
+		}
+
+		if (ditherMode == DitherMode.NONE && optimizationLevel >= 3) {
+			int[] colors = buffers.cellColors;
+			int colorCount = 0;
+			boolean[] uColors = buffers.cellColorsUsed;
 
-				if (pw * ph == 2 && quadrant[0] == 1) {
-					int t = fgIndex;
-					fgIndex = bgIndex;
-					bgIndex = t;
-					quadrant[0] = 0;
+			for (int i = 0; i < pixelCount; i++) {
+				int bestCol = nearestColors[i];
+				if (!uColors[bestCol]) {
+					uColors[bestCol] = true;
+					colors[colorCount++] = bestCol;
 				}
+			}
+			for (int i = 0; i < colorCount; i++) {
+				uColors[colors[i]] = false;
+			}
 
-				if (palette.length > 2) {
-					if (pw * ph == 1) {
-						stream.write(fgIndex);
+			if (colorCount <= 2) {
+				bci1 = colors[0];
+				bci2 = colorCount > 1 ? colors[1] : 0;
+
+				for (int i = 0; i < bcq.length; i++)
+					bcq[i] = 0;
+
+				bcerr = 0;
+				for (int i = 0; i < pixelCount; i++) {
+					int pos = (pw * ph - 1 - i);
+					double dist0 = distances[bci1 * pixelCount + i];
+					double dist1 = distances[bci2 * pixelCount + i];
+					if (dist1 < dist0) {
+						bcq[pos >> 3] |= (1 << (pos & 7));
+						bcerr += dist1;
 					} else {
-						if (palette.length > 16) {
-							stream.write(bgIndex);
-							stream.write(fgIndex);
-						} else {
-							stream.write(bgIndex << 4 | fgIndex);
-						}
+						bcerr += dist0;
 					}
+				}
+
+				bcqFound = true;
+			}
+		}
+
+		if (!bcqFound) {
+			for (int cim1 = 1; cim1 < palMapLength; cim1++) {
+				if (bcerr == 0) break;
+				int ci1 = usePalMap ? palMap[cim1] : cim1;
 
-					if (pw * ph > 2) {
-						for (int i = 0; i < quadrantLen; i++)
-							stream.write(quadrant[i]);
+				if (ditherMode == DitherMode.NONE) {
+					// Any pair containing ci1 costs at least the sum of
+					// min(distance to ci1, distance to the nearest colour).
+					int off1 = ci1 * pixelCount;
+					double lowerBound = 0;
+					for (int i = 0; i < pixelCount; i++) {
+						lowerBound += Math.min(distances[off1 + i], minDistances[i]);
 					}
-				} else {
-					for (int i = 0; i < quadrantLen; i++)
-						stream.write(quadrant[i]);
+					if (lowerBound >= bcerr) continue;
 				}
 
-				for (int py = 0; py < ph; py++) {
-					for (int px = 0; px < pw; px++) {
-						int i = (pw * ph - 1) - (py * pw + px);
+				for (int cim2 = (platform instanceof PlatformZXSpectrum) ? (cim1 >= 8 ? 8 : 0) : 0; cim2 < cim1; cim2++) {
+					if (bcerr == 0) break;
+					int ci2 = usePalMap ? palMap[cim2] : cim2;
+					double cerr = evaluatePair(cx, cy, ci1, ci2, bcerr, buffers);
 
-						if ((quadrant[i >> 3] & (1 << (i & 7))) != 0) {
-							output.setRGB(cx * pw + px, cy * ph + py, palette[fgIndex].getRGB());
-						} else {
-							output.setRGB(cx * pw + px, cy * ph + py, palette[bgIndex].getRGB());
+					if (cerr < bcerr) {
+						bci1 = ci1;
+						bci2 = ci2;
+						bcerr = cerr;
+						if (ditherMode == DitherMode.ERROR) {
+							System.arraycopy(errors, 0, bcea, 0, errors.length);
+						}
+						for (int i = 0; i < quadrantLen; i++) {
+							bcq[i] = cq[i];
 						}
 					}
 				}
 			}
 		}
+
+		if (cacheKey != null) {
+			cellCache.put(cacheKey.copy(), new CellCache.Result(bci1, bci2, Arrays.copyOf(bcq, quadrantLen), bcerr));
+		}
+		storeCell(cx, cy, bci1, bci2, bcerr, buffers);
+	}
+
+	/**
+	 * Records the colours chosen for a cell, taking the quadrant bits from
+	 * buffers.bcq, and pushes buffers.bcea into the neighbouring pixels when
+	 * using error diffusion.
+	 */
+	private void storeCell(int cx, int cy, int bci1, int bci2, double bcerr, CellBuffers buffers) {
+		float[] bcea = buffers.bcea;
+
+		if (ditherMode == DitherMode.ERROR) {
+			for (int iy = 0; iy < eh; iy++) {
+				int ry = cy * ph + iy - ditherMatrixOffset;
+				if (ry >= 0 && ry < ch * ph) {
+					for (int ix = 0; ix < ew; ix++) {
+						int rx = cx * pw + ix - ditherMatrixOffset;
+						if (rx >= 0 && rx < cw * pw) {
+							for (int i = 0; i < 3; i++) {
+								img[(ry * cw * pw + rx) * 3 + i] += bcea[(iy * ew + ix) * 3 + i];
+							}
+						}
+					}
+				}
+			}
+		}
+
+		int cellIndex = cy * cw + cx;
+		cellColors[cellIndex * 2] = bci1;
+		cellColors[cellIndex * 2 + 1] = bci2;
+		cellErrors[cellIndex] = bcerr;
+		System.arraycopy(buffers.bcq, 0, cellQuadrants, cellIndex * quadrantLen, quadrantLen);
+	}
+
+	private void computeDistances(int ci, CellBuffers buffers) {
+		int pixelCount = pw * ph;
+		for (int i = 0; i < pixelCount; i++) {
+			buffers.distances[ci * pixelCount + i] = (float) Utils.getColorDistanceSq(pal, ci * 3, buffers.pixels, i * 3);
+		}
+	}
+
+	/**
+	 * @return Whether this conversion's cell had the given source pixels
+	 * and, with error diffusion, the given effective pixels, which also
+	 * carry the error diffused into it by the cells converted before it.
+	 * Without it, the effective pixels follow from the source pixels.
+	 */
+	private boolean cellMatches(int cx, int cy, int[] otherRGB, float[] pixels) {
+		int width = image.getWidth();
+		for (int py = 0; py < ph; py++) {
+			int offset = (cy * ph + py) * width + cx * pw;
+			for (int px = 0; px < pw; px++) {
+				if (rgb[offset + px] != otherRGB[offset + px]) {
+					return false;
+				}
+			}
+		}
+
+		if (cellPixels != null) {
+			int offset = (cy * cw + cx) * pw * ph * 3;
+			for (int i = 0; i < pw * ph * 3; i++) {
+				if (Float.floatToRawIntBits(cellPixels[offset + i]) != Float.floatToRawIntBits(pixels[i])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Fills in the key of the given buffers for this cell. Only valid until
+	 * the buffers convert another cell.
+	 */
+	private CellCache.Key setCacheKey(int cx, int cy, CellBuffers buffers) {
+		CellCache.Key key = buffers.cacheKey;
+		int[] cellRGB = key.getPixels();
+		for (int py = 0; py < ph; py++) {
+			System.arraycopy(rgb, (cy * ph + py) * image.getWidth() + cx * pw, cellRGB, py * pw, pw);
+		}
+
+		int position = 0;
+		if (ditherMode == DitherMode.ORDERED) {
+			position = ((cy * ph) % ditherMatrixSize) * ditherMatrixSize + (cx * pw) % ditherMatrixSize;
+		}
+		key.set(cellCacheSettings, position);
+		return key;
+	}
+
+	/**
+	 * Fingerprints everything besides a cell's pixels and position that
+	 * affects its result. Only uses values that are the same across runs,
+	 * so that cache files stay valid.
+	 */
+	private long computeCacheSettings() {
+		long hash = 0xCBF29CE484222325L;
+		long prime = 0x100000001B3L;
+
+		hash = (hash ^ platform.platformId) * prime;
+		hash = (hash ^ platform.getClass().getName().hashCode()) * prime;
+		if (platform instanceof PlatformOpenComputers) {
+			hash = (hash ^ ((PlatformOpenComputers) platform).tier) * prime;
+		}
+		hash = (hash ^ pw) * prime;
+		hash = (hash ^ ph) * prime;
+		hash = (hash ^ optimizationLevel) * prime;
+		hash = (hash ^ ditherMode.ordinal()) * prime;
+		if (paletteLookupTable != null) {
+			hash = (hash ^ paletteLookupTable.getFingerprint()) * prime;
+		}
+		if (ditherMatrix != null) {
+			for (float f : ditherMatrix) {
+				hash = (hash ^ Float.floatToRawIntBits(f)) * prime;
+			}
+		}
+
+		// The palette in the active colourspace, plus a few probe colours, so
+		// that both the palette and the colourspace are covered.
+		hash = (hash ^ palette.length) * prime;
+		for (float f : pal) {
+			hash = (hash ^ Float.floatToRawIntBits(f)) * prime;
+		}
+		for (int probe : new int[] { 0xFF0000, 0x00FF00, 0x0000FF, 0x808080 }) {
+			for (float f : colorspace.fromRGB(probe)) {
+				hash = (hash ^ Float.floatToRawIntBits(f)) * prime;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Tries the colours another conversion chose for this cell. They are
+	 * kept if their error on this cell's pixels is at most maxError.
+	 */
+	private boolean reuseCell(int cx, int cy, Converter source, double maxError, CellBuffers buffers) {
+		int cellIndex = cy * cw + cx;
+		int pci1 = source.cellColors[cellIndex * 2];
+		int pci2 = source.cellColors[cellIndex * 2 + 1];
+
+		if (ditherMode == DitherMode.NONE) {
+			computeDistances(pci1, buffers);
+			computeDistances(pci2, buffers);
+		}
+
+		double cerr = evaluatePair(cx, cy, pci1, pci2, Double.MAX_VALUE, buffers);
+		if (cerr > maxError) {
+			return false;
+		}
+
+		System.arraycopy(buffers.cq, 0, buffers.bcq, 0, quadrantLen);
+		if (ditherMode == DitherMode.ERROR) {
+			System.arraycopy(buffers.errors, 0, buffers.bcea, 0, buffers.errors.length);
+		}
+		storeCell(cx, cy, pci1, pci2, cerr, buffers);
+		return true;
+	}
+
+	/**
+	 * Chooses colours and quadrant bits for every cell. Called by write();
+	 * does nothing if the cells have already been converted.
+	 */
+	void convertCells() {
+		if (converted) {
+			return;
+		}
+		converted = true;
+
+		if (threads > 1 && ditherMode != DitherMode.ERROR) {
+			engine.getPool().invoke(new CellRowTask(0, ch));
+		} else if (threads > 1 && canUseWavefront()) {
+			ForkJoinPool pool = engine.getPool();
+			int steps = cw + (ch - 1) * 2;
+			for (int step = 0; step < steps; step++) {
+				int minY = Math.max(0, (step - cw + 2) / 2);
+				int maxY = Math.min(ch, step / 2 + 1);
+				if (minY < maxY) {
+					int grain = Math.max(1, (maxY - minY) / (threads * 4));
+					pool.invoke(new WavefrontTask(step, minY, maxY, grain));
+				}
+			}
+		} else {
+			CellBuffers buffers = getCellBuffers();
+			for (int cy = 0; cy < ch; cy++) {
+				for (int cx = 0; cx < cw; cx++) {
+					convertCell(cx, cy, buffers);
+				}
+			}
+		}
+
+		// Only needed while converting; keeping them would hold on to every
+		// earlier frame or input of a run.
+		previousFrame = null;
+		incrementalSource = null;
+	}
+
+	int getCellCount() {
+		return cw * ch;
+	}
+
+	/**
+	 * @return The length of the arrays filled by encodeCell.
+	 */
+	int getEncodedCellLength() {
+		return 2 + quadrantLen;
+	}
+
+	/**
+	 * Fills cell with the background index, foreground index and quadrant
+	 * bytes of a converted cell, normalised the way they are stored in the
+	 * file.
+	 */
+	void encodeCell(int cellIndex, int[] cell) {
+		int bgIndex = cellColors[cellIndex * 2];
+		int fgIndex = cellColors[cellIndex * 2 + 1];
+		int q = 2;
+		System.arraycopy(cellQuadrants, cellIndex * quadrantLen, cell, q, quadrantLen);
+		if (bgIndex == fgIndex) {
+			for (int i = 0; i < quadrantLen; i++) cell[q + i] = 0;
+		}
+
+		if (platform instanceof PlatformComputerCraft) {
+			if ((cell[q] & 0x01) != 0) {
+				int t = fgIndex;
+				fgIndex = bgIndex;
+				bgIndex = t;
+				cell[q] ^= 0x3F;
+			}
+		} else if (platform instanceof PlatformOpenComputers && pw * ph > 2) {
+			if (bgIndex > fgIndex) {
+				int t = fgIndex;
+				fgIndex = bgIndex;
+				bgIndex = t;
+				cell[q] ^= (1 << (pw * ph)) - 1;
+			}
+		}
+
+		if (pw * ph == 2 && cell[q] == 1) {
+			int t = fgIndex;
+			fgIndex = bgIndex;
+			bgIndex = t;
+			cell[q] = 0;
+		}
+
+		cell[0] = bgIndex;
+		cell[1] = fgIndex;
+	}
+
+	/**
+	 * @return The amount of bytes writeCell() writes for every cell.
+	 */
+	int getCellDataLength() {
+		if (palette.length > 2) {
+			int colorLength = (pw * ph > 1 && palette.length > 16) ? 2 : 1;
+			return colorLength + (pw * ph > 2 ? quadrantLen : 0);
+		} else {
+			return quadrantLen;
+		}
+	}
+
+	void writeCell(CTIFBuffer buffer, int[] cell) {
+		int bgIndex = cell[0];
+		int fgIndex = cell[1];
+
+		if (palette.length > 2) {
+			if (pw * ph == 1) {
+				buffer.write(fgIndex);
+			} else {
+				if (palette.length > 16) {
+					buffer.write(bgIndex);
+					buffer.write(fgIndex);
+				} else {
+					buffer.write(bgIndex << 4 | fgIndex);
+				}
+			}
+
+			if (pw * ph > 2) {
+				for (int i = 0; i < quadrantLen; i++)
+					buffer.write(cell[2 + i]);
+			}
+		} else {
+			for (int i = 0; i < quadrantLen; i++)
+				buffer.write(cell[2 + i]);
+		}
+	}
+
+	/**
+	 * @return A TYPE_INT_RGB image for renderCell() to draw into.
+	 */
+	BufferedImage createPreviewImage() {
+		return new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+	}
+
+	void renderCell(BufferedImage output, int cellIndex, int[] cell) {
+		int[] data = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+		int width = output.getWidth();
+		int bg = palette[cell[0]].getRGB() & 0xFFFFFF;
+		int fg = palette[cell[1]].getRGB() & 0xFFFFFF;
+		int offset = (cellIndex / cw) * ph * width + (cellIndex % cw) * pw;
+
+		for (int py = 0; py < ph; py++) {
+			for (int px = 0; px < pw; px++) {
+				int i = (pw * ph - 1) - (py * pw + px);
+				data[offset + px] = (cell[2 + (i >> 3)] & (1 << (i & 7))) != 0 ? fg : bg;
+			}
+			offset += width;
+		}
+	}
+
+	private void writePixelData(CTIFBuffer buffer, BufferedImage output) {
+		convertCells();
+
+		int[] cell = new int[getEncodedCellLength()];
+		for (int i = 0; i < getCellCount(); i++) {
+			encodeCell(i, cell);
+			writeCell(buffer, cell);
+			renderCell(output, i, cell);
+		}
 	}
 }
@@ -0,0 +1,103 @@
+package pl.asie.ctif;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The resources conversions can share regardless of their settings: a thread
+ * pool, per-thread scratch buffers, the cell cache and palette lookup tables.
+ * Create one and reuse it for every image converted, from any amount of
+ * threads at once; the settings of each conversion are given by its
+ * ConversionContext.
+ */
+public final class ConverterEngine implements AutoCloseable {
+	// Used by converters made without an engine. Its pool is the common
+	// pool, which close() cannot shut down.
+	static final ConverterEngine SHARED = new ConverterEngine(ForkJoinPool.getCommonPoolParallelism(), ForkJoinPool.commonPool());
+
+	private final int threads;
+	private final ForkJoinPool pool;
+	private final ThreadLocal<Converter.CellBuffers> cellBuffers = new ThreadLocal<>();
+	private CellCache cellCache;
+	private PaletteLookupTables paletteLookupTables;
+
+	/**
+	 * @param threads The amount of threads each conversion uses.
+	 */
+	public ConverterEngine(int threads) {
+		this(threads, threads);
+	}
+
+	/**
+	 * @param threads The amount of threads each conversion uses.
+	 * @param poolThreads The size of the pool shared by all conversions
+	 *                    running at once; at least threads.
+	 */
+	public ConverterEngine(int threads, int poolThreads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1!");
+		}
+		this.threads = threads;
+		this.pool = threads > 1 ? new ForkJoinPool(Math.max(threads, poolThreads)) : null;
+	}
+
+	private ConverterEngine(int threads, ForkJoinPool pool) {
+		this.threads = threads;
+		this.pool = pool;
+	}
+
+	/**
+	 * Makes the converters created from now on look up and store cell
+	 * results in cache, or not if null.
+	 */
+	public void setCellCache(CellCache cache) {
+		this.cellCache = cache;
+	}
+
+	/**
+	 * Makes the converters created from now on use the palette lookup tables
+	 * of the given --palette-lut file, or none if null.
+	 */
+	public void setPaletteLookupFile(String fileName) {
+		this.paletteLookupTables = fileName != null ? new PaletteLookupTables(fileName) : null;
+	}
+
+	public Converter createConverter(ConversionContext context, Color[] palette, BufferedImage image, Converter.DitherMode ditherMode, float[] ditherMatrix) {
+		Converter converter = new Converter(this, context, palette, image, ditherMode, ditherMatrix, threads);
+		if (paletteLookupTables != null) {
+			paletteLookupTables.apply(converter);
+		}
+		converter.setCellCache(cellCache);
+		return converter;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return Scratch buffers of the calling thread fitting converter,
+	 * reallocated only when the last conversion on this thread needed
+	 * buffers of another size.
+	 */
+	Converter.CellBuffers getCellBuffers(Converter converter) {
+		Converter.CellBuffers buffers = cellBuffers.get();
+		if (buffers == null || !buffers.fits(converter)) {
+			buffers = new Converter.CellBuffers(converter);
+			cellBuffers.set(buffers);
+		}
+		return buffers;
+	}
+
+	@Override
+	public void close() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+}
@@ -1,20 +1,34 @@
 package pl.asie.ctif;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import pl.asie.ctif.colorspace.Colorspace;
 import pl.asie.ctif.platform.Platform;
 import pl.asie.ctif.platform.PlatformComputerCraft;
 import pl.asie.ctif.platform.PlatformOpenComputers;
 import pl.asie.ctif.platform.PlatformZXSpectrum;
 
+import javax.imageio.ImageIO;
+
 public class Main {
 	private static class Parameters {
 		@Parameter(names = {"--palette-sampling-resolution"}, description = "The sampling resolution for palette generation. 0 = full image (1/4x1/4 image in -O3+)")
@@ -23,9 +37,12 @@ public class Main {
 		@Parameter(names = {"--threads"}, description = "Amount of threads to create")
 		private int threads = Runtime.getRuntime().availableProcessors();
 
-		@Parameter(names = {"--palette-export"}, description = "File to export the palette to.")
+		@Parameter(names = {"--palette-export"}, description = "File to export the palette to. In batch mode, a pattern like --output-pattern.")
 		private String paletteExport;
 
+		@Parameter(names = {"--palette-generator"}, description = "Palette generator (kmeans; kmeans_streaming: mini-batch k-means on the input file rather than the resized image, read in strips; median_cut: fast, one pass; median_cut_kmeans: k-means starting from median cut)")
+		private PaletteGeneratorType paletteGenerator = PaletteGeneratorType.KMEANS;
+
 		@Parameter(names = {"--palette"}, description = "File to load the palette from.")
 		private String palette;
 
@@ -65,25 +82,77 @@ public class Main {
 		@Parameter(names = {"-P", "--preview"}, description = "Preview image filename")
 		private String previewFilename;
 
-		@Parameter(description = "Input file")
+		@Parameter(description = "Input file(s). In batch mode, directories and glob patterns are also accepted.")
 		private List<String> files = new ArrayList<>();
 
+		@Parameter(names = {"-b", "--batch"}, description = "Convert every input file instead of only the first one")
+		private boolean batch = false;
+
+		@Parameter(names = {"-j", "--jobs"}, description = "Amount of files to convert at once in batch mode")
+		private int jobs = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = {"--output-pattern"}, description = "Output filename pattern for batch mode ({dir}, {file}, {name})")
+		private String outputPattern = "{dir}/{file}.ctif";
+
+		@Parameter(names = {"--preview-pattern"}, description = "Preview image filename pattern for batch mode ({dir}, {file}, {name})")
+		private String previewPattern;
+
+		@Parameter(names = {"--animation"}, description = "Convert the input files as frames of one animated image")
+		private boolean animation = false;
+
+		@Parameter(names = {"--frame-delay"}, description = "Delay between animation frames, in milliseconds")
+		private int frameDelay = 100;
+
+		@Parameter(names = {"--keyframe-interval"}, description = "Store a full animation frame at least every N frames. 0 = only when the palette changes")
+		private int keyframeInterval = 0;
+
+		@Parameter(names = {"--temporal-threshold"}, description = "Reuse the previous animation frame's cell colours, and let its palette grow further off, while the error per pixel grows by at most this much. 0 = off")
+		private float temporalThreshold = 0;
+
+		@Parameter(names = {"--incremental"}, description = "Reuse the previous input's results for cells that did not change (batch and animation modes)")
+		private boolean incremental = false;
+
+		@Parameter(names = {"--cell-cache-size"}, description = "Maximum amount of cell results to cache, for none and ordered dithering. 0 = off, unless --cell-cache is given")
+		private int cellCacheSize = 0;
+
+		@Parameter(names = {"--cell-cache"}, description = "File to load the cell result cache from and save it to")
+		private String cellCacheFile;
+
+		@Parameter(names = {"--palette-lut"}, description = "File to load the nearest colour lookup table for large fixed palettes (oc-tier3) from. Built and saved there if missing or made for another palette or colorspace")
+		private String paletteLookupFile;
+
+		@Parameter(names = {"--server"}, description = "Instead of converting files, serve conversions over HTTP on this local port. Requests run --jobs at a time, with --threads split between them")
+		private int serverPort = 0;
+
+		@Parameter(names = {"--seed"}, description = "Random seed for palette generation. The same seed and input always give the same palette. Random by default")
+		private Long seed;
+
 		@Parameter(names = {"-h", "--help"}, description = "Print usage", help = true)
 		private boolean help;
 
-		@Parameter(names = {"--resize-mode"}, description = "Resize mode")
+		@Parameter(names = {"--resize-mode"}, description = "Resize mode (speed: nearest neighbour; quality_native: Java2D bicubic; quality: ImageMagick Lanczos, or lanczos if ImageMagick is missing; lanczos, mitchell: built-in, in linear light)")
 		private ResizeMode resizeMode;
 	}
 
 	public enum ResizeMode {
 		SPEED,
 		QUALITY_NATIVE,
-		QUALITY
+		QUALITY,
+		LANCZOS,
+		MITCHELL
+	};
+
+	public enum PaletteGeneratorType {
+		KMEANS,
+		KMEANS_STREAMING,
+		MEDIAN_CUT,
+		MEDIAN_CUT_KMEANS
 	};
 
-	public static Colorspace COLORSPACE = null;
-	public static Platform PLATFORM = null;
-	public static int OPTIMIZATION_LEVEL = 1;
+	private static final double PALETTE_REUSE_TOLERANCE = 1.01;
+	// Large inputs are decoded at no less than this many times the output
+	// size, leaving the resize filter enough pixels to work with.
+	private static final int DECODE_SIZE_FACTOR = 4;
 	private static final Map<String, float[]> DITHER_ARRAYS = new HashMap<>();
 	private static final Map<String, Platform> PLATFORMS = new HashMap<>();
 	private static final Map<String, Colorspace> COLORSPACES = new HashMap<>();
@@ -194,9 +263,18 @@ public class Main {
 		});
 	}
 
-    public static boolean DEBUG = false;
+	static Platform getPlatform(String name) {
+		return PLATFORMS.get(name);
+	}
 
-	private static Parameters params;
+	static float[] getDitherArray(String name) {
+		return DITHER_ARRAYS.get(name);
+	}
+
+	private final Parameters params;
+	private final ConversionContext context;
+	private final float[] ditherArray;
+	private final Color[] fixedPalette;
 
 	private static int rCeil(int x, int y) {
 		if (x % y > 0) {
@@ -206,30 +284,29 @@ public class Main {
 		}
 	}
 
-	public static void main(String[] args) {
-		params = new Parameters();
-		JCommander jCommander = new JCommander(params, args);
+	/**
+	 * Validates the parameters of one run, filling in defaults, and reads
+	 * the fixed palette if one is given.
+	 */
+	private Main(Parameters params) throws ConversionException {
+		this.params = params;
 
-		if (params.help) {
-			jCommander.usage();
-			System.exit(0);
+		Platform platform = PLATFORMS.get(params.mode.toLowerCase());
+		if (platform == null) {
+			throw new ConversionException(String.format("Invalid mode: %s", params.mode));
 		}
-
-		PLATFORM = PLATFORMS.get(params.mode.toLowerCase());
-		COLORSPACE = COLORSPACES.get(params.colorspace.toLowerCase());
-
-		if (params.files.size() == 0) {
-			System.err.println("No input file specified!");
-			System.exit(1);
+		Colorspace colorspace = COLORSPACES.get(params.colorspace.toLowerCase());
+		if (colorspace == null) {
+			throw new ConversionException(String.format("Invalid colorspace: %s", params.colorspace));
 		}
+		this.context = new ConversionContext(platform, colorspace, params.optimizationLevel, params.debug);
 
-		if (PLATFORM == null) {
-			System.err.println(String.format("Invalid mode: %s", params.mode));
-			System.exit(1);
+		if (params.seed == null) {
+			params.seed = new Random().nextLong();
+		}
+		if (params.debug) {
+			System.err.println("Palette seed: " + params.seed);
 		}
-
-		OPTIMIZATION_LEVEL = params.optimizationLevel;
-		DEBUG = params.debug;
 		if (params.ditherType == null) {
 			switch (params.ditherMode) {
 				case ORDERED:
@@ -241,159 +318,619 @@ public class Main {
 			}
 		}
 
-		BufferedImage image = Utils.loadImage(params.files.get(0));
-		if (image == null) {
-			System.err.println(String.format("Could not load image: %s", params.files.get(0)));
-			System.exit(1);
+		float[] ditherArray = DITHER_ARRAYS.get(params.ditherType.toLowerCase());
+		if (ditherArray == null) {
+			throw new ConversionException(String.format("Invalid dither type: %s", params.ditherType));
 		}
 
-		Color[] palette = PLATFORM.getPalette();
-		params.w = (params.w > 0) ? rCeil(params.w, PLATFORM.getCharWidth()) : 0;
-		params.h = (params.h > 0) ? rCeil(params.h, PLATFORM.getCharHeight()) : 0;
+		if (params.ditherLevel == 0) {
+			params.ditherMode = Converter.DitherMode.NONE;
+		} else if (params.ditherLevel != 1) {
+			ditherArray = Arrays.copyOf(ditherArray, ditherArray.length);
 
-		if (params.w == 0) params.w = PLATFORM.getWidthPx();
-		if (params.h == 0) params.h = PLATFORM.getHeightPx();
+			switch (params.ditherMode) {
+				case ERROR:
+					for (int i = 0; i < ditherArray.length; i++) {
+						ditherArray[i] *= params.ditherLevel;
+					}
+					break;
+				case ORDERED:
+					float newScale = params.ditherLevel;
+					float newOffset = ditherArray.length * ((1 - params.ditherLevel) / 2.0f);
+					for (int i = 0; i < ditherArray.length; i++) {
+						if (ditherArray[i] > 0) {
+							ditherArray[i] = (ditherArray[i] - 1) * newScale + newOffset;
+						}
+					}
+					break;
+			}
+		}
+		this.ditherArray = ditherArray;
 
-		if (!params.ignoreAspectRatio) {
-			float x = (params.ignoreAspectRatio ? PLATFORM.getDefaultAspectRatio() : (float) image.getWidth() / image.getHeight());
-			float y = 1.0f;
-			float a = Math.min(Math.min(
-					(float) params.w / x,
-					(float) params.h / y),
-					(float) Math.sqrt((float) PLATFORM.getCharsPx() / (x * y)));
-			params.w = rCeil((int) Math.floor(x * a), PLATFORM.getCharWidth());
-			params.h = rCeil((int) Math.floor(y * a), PLATFORM.getCharHeight());
+		if (platform.getCustomColorCount() > 0 && params.palette != null) {
+			System.err.println("Reading palette...");
+			fixedPalette = platform.getPalette();
+			try {
+				FileInputStream inputStream = new FileInputStream(new File(params.palette));
+				for (int i = 0; i < platform.getCustomColorCount(); i++) {
+					int red = inputStream.read();
+					int green = inputStream.read();
+					int blue = inputStream.read();
+					fixedPalette[i] = new Color(red, green, blue);
+				}
+				inputStream.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			fixedPalette = null;
 		}
+	}
 
-		System.out.println(params.w + " " + params.h);
+	public static void main(String[] args) {
+		Parameters params = new Parameters();
+		JCommander jCommander = JCommander.newBuilder().addObject(params).build();
+		jCommander.parse(args);
 
-		if (params.w * params.h > PLATFORM.getCharsPx()) {
-			System.err.println(String.format("Size too large: %dx%d (maximum size: %d pixels)", params.w, params.h, PLATFORM.getCharsPx()));
-			System.exit(1);
-		} else if (params.w > PLATFORM.getWidthPx()) {
-			System.err.println(String.format("Width too large: %d (maximum width: %d)", params.w, PLATFORM.getWidthPx()));
-			System.exit(1);
-		} else if (params.h > PLATFORM.getHeightPx()) {
-			System.err.println(String.format("Height too large: %d (maximum height: %d)", params.h, PLATFORM.getHeightPx()));
+		if (params.help) {
+			jCommander.usage();
+			System.exit(0);
+		}
+
+		if (params.serverPort <= 0 && params.files.size() == 0) {
+			System.err.println("No input file specified!");
 			System.exit(1);
 		}
 
-		int width = params.w;
-		int height = params.h;
+		CellCache cellCache = null;
+		if (params.cellCacheSize > 0 || params.cellCacheFile != null) {
+			cellCache = new CellCache(params.cellCacheSize > 0 ? params.cellCacheSize : 65536);
+			if (params.cellCacheFile != null && new File(params.cellCacheFile).exists()) {
+				try {
+					cellCache.load(new File(params.cellCacheFile));
+				} catch (IOException e) {
+					System.err.println("Could not load cell cache, starting empty: " + e.getMessage());
+				}
+			}
+		}
 
-		if (Main.DEBUG) {
-			System.err.println("Using " + params.threads + " threads.");
+		if (params.serverPort > 0) {
+			try {
+				new ConversionServer(params.serverPort, Math.max(1, params.jobs), Math.max(1, params.threads),
+						cellCache, params.paletteLookupFile, params.debug).start();
+				// The server runs until it is stopped, so save the cell cache on the way out.
+				CellCache serverCellCache = cellCache;
+				String cellCacheFile = params.cellCacheFile;
+				boolean debug = params.debug;
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> saveCellCache(serverCellCache, cellCacheFile, debug)));
+			} catch (IOException e) {
+				System.err.println("Could not start server: " + e.getMessage());
+				System.exit(1);
+			}
+			return;
 		}
 
-		System.err.println("Resizing image...");
-		long timeR = System.currentTimeMillis();
+		Main main;
+		try {
+			main = new Main(params);
+		} catch (ConversionException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
 
-		BufferedImage resizedImage;
-		if (image.getWidth() == width && image.getHeight() == height) {
-			resizedImage = image;
-		} else if (params.resizeMode == ResizeMode.SPEED) {
-			resizedImage = Utils.resizeBox(image, width, height);
+		boolean success = true;
+		if (params.batch) {
+			success = main.runBatch(cellCache);
 		} else {
-			resizedImage = Utils.resize(image, width, height, params.resizeMode == ResizeMode.QUALITY_NATIVE);
+			try (ConverterEngine engine = new ConverterEngine(Math.max(1, params.threads))) {
+				engine.setCellCache(cellCache);
+				engine.setPaletteLookupFile(params.paletteLookupFile);
+				if (params.animation) {
+					main.convertAnimation(params.outputFilename != null ? params.outputFilename : params.files.get(0) + ".ctif", engine);
+				} else {
+					main.convertFile(params.files.get(0),
+							params.outputFilename != null ? params.outputFilename : params.files.get(0) + ".ctif",
+							params.previewFilename,
+							engine, null, null, true);
+				}
+			} catch (ConversionException e) {
+				System.err.println(e.getMessage());
+				success = false;
+			}
 		}
 
-		timeR = System.currentTimeMillis() - timeR;
-		if (DEBUG) {
-			System.err.println("Image resize time: " + timeR + " ms");
-		}
+		saveCellCache(cellCache, params.cellCacheFile, params.debug);
+		System.exit(success ? 0 : 1);
+	}
 
-		if (PLATFORM.getCustomColorCount() > 0) {
-			if (params.palette != null) {
-				System.err.println("Reading palette...");
+	private static void saveCellCache(CellCache cellCache, String fileName, boolean debug) {
+		if (cellCache != null) {
+			if (debug) {
+				System.err.println(String.format("Cell cache: %d hits, %d misses, %d entries", cellCache.getHits(), cellCache.getMisses(), cellCache.size()));
+			}
+			if (fileName != null) {
 				try {
-					FileInputStream inputStream = new FileInputStream(new File(params.palette));
-					for (int i = 0; i < PLATFORM.getCustomColorCount(); i++) {
-						int red = inputStream.read();
-						int green = inputStream.read();
-						int blue = inputStream.read();
-						palette[i] = new Color(red, green, blue);
-					}
-					inputStream.close();
-				} catch (Exception e) {
-					throw new RuntimeException(e);
+					cellCache.save(new File(fileName));
+				} catch (IOException e) {
+					System.err.println("Could not save cell cache: " + e.getMessage());
 				}
-			} else {
-				long time = System.currentTimeMillis();
-				System.err.println("Generating palette...");
-				PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(resizedImage, palette, PLATFORM.getCustomColorCount(), params.paletteSamplingResolution);
-				palette = generator.generate(params.threads);
-				time = System.currentTimeMillis() - time;
-				if (DEBUG) {
-					System.err.println("Palette generation time: " + time + " ms");
+			}
+		}
+	}
+
+	/**
+	 * Converts one image for the conversion server. args are parsed like the
+	 * command line, without input files; the preview is only written if
+	 * previewName is not null.
+	 *
+	 * @return The CTIF file.
+	 */
+	static CTIFBuffer convertRequest(List<String> args, String inputName, String previewName, ConverterEngine engine, boolean debug) throws ConversionException {
+		Parameters params = new Parameters();
+		try {
+			JCommander.newBuilder().addObject(params).build().parse(args.toArray(new String[0]));
+		} catch (ParameterException e) {
+			throw new ConversionException(e.getMessage());
+		}
+		params.debug = debug;
+		CTIFBuffer output = new CTIFBuffer();
+		new Main(params).convertImage(inputName, output, previewName, engine, null, null, false);
+		return output;
+	}
+
+	/**
+	 * Thrown when a single input cannot be converted; the message is meant
+	 * for the user.
+	 */
+	static class ConversionException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		ConversionException(String message) {
+			super(message);
+		}
+	}
+
+	private static boolean isGlob(String s) {
+		return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+	}
+
+	private static boolean isImageFile(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || !Files.isRegularFile(path)) {
+			return false;
+		}
+		return Arrays.asList(ImageIO.getReaderFileSuffixes()).contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	private static List<String> expandInputs(List<String> inputs) throws IOException {
+		List<String> files = new ArrayList<>();
+		for (String input : inputs) {
+			if (isGlob(input)) {
+				String normalized = input.replace(File.separatorChar, '/');
+				int firstWildcard = 0;
+				while (!isGlob(normalized.substring(0, firstWildcard + 1))) {
+					firstWildcard++;
+				}
+				int baseEnd = normalized.lastIndexOf('/', firstWildcard);
+				Path base = Paths.get(baseEnd >= 0 ? normalized.substring(0, baseEnd + 1) : ".");
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(baseEnd + 1));
+				List<String> matched = new ArrayList<>();
+				try (Stream<Path> paths = Files.walk(base)) {
+					paths.filter(p -> Files.isRegularFile(p) && matcher.matches(base.relativize(p)))
+							.forEach(p -> matched.add(p.toString()));
+				}
+				Collections.sort(matched);
+				files.addAll(matched);
+			} else if (Files.isDirectory(Paths.get(input))) {
+				List<String> matched = new ArrayList<>();
+				try (Stream<Path> paths = Files.list(Paths.get(input))) {
+					paths.filter(Main::isImageFile).forEach(p -> matched.add(p.toString()));
 				}
+				Collections.sort(matched);
+				files.addAll(matched);
+			} else {
+				files.add(input);
 			}
+		}
+		return files;
+	}
 
-			if (params.paletteExport != null) {
-				System.err.println("Saving palette...");
+	/**
+	 * Expands an output pattern for the given input. {dir} is the input's
+	 * directory, {file} its file name and {name} the file name without
+	 * extension.
+	 */
+	private static String formatOutputName(String pattern, String input) {
+		File file = new File(input);
+		String fileName = file.getName();
+		int dot = fileName.lastIndexOf('.');
+		String dir = file.getAbsoluteFile().getParent();
+		return pattern
+				.replace("{dir}", dir != null ? dir : ".")
+				.replace("{file}", fileName)
+				.replace("{name}", dot > 0 ? fileName.substring(0, dot) : fileName);
+	}
+
+	private boolean runBatch(CellCache cellCache) {
+		List<String> inputs;
+		try {
+			inputs = expandInputs(params.files);
+		} catch (IOException e) {
+			System.err.println("Could not list input files: " + e.getMessage());
+			return false;
+		}
+
+		if (inputs.isEmpty()) {
+			System.err.println("No input files found!");
+			return false;
+		}
+
+		// Incremental conversion needs the previous file's result, so the
+		// files are converted one at a time, in order.
+		int jobs = params.incremental ? 1 : Math.max(1, Math.min(params.jobs, inputs.size()));
+		int threadsPerJob = Math.max(1, params.threads / jobs);
+		if (context.isDebug()) {
+			System.err.println("Converting " + inputs.size() + " files using " + jobs + " jobs, " + threadsPerJob + " threads each.");
+		}
+
+		// The jobs share one engine: its pool runs the cells of every job, so it
+		// gets all the threads.
+		ConverterEngine engine = new ConverterEngine(threadsPerJob, Math.max(1, params.threads));
+		engine.setCellCache(cellCache);
+		engine.setPaletteLookupFile(params.paletteLookupFile);
+		ExecutorService executorService = Executors.newFixedThreadPool(jobs);
+		List<Future<?>> futures = new ArrayList<>();
+		AtomicInteger done = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		AtomicReference<Converter> previous = new AtomicReference<>();
+		AtomicReference<BufferedImage> paletteSource = new AtomicReference<>();
+		long timeB = System.currentTimeMillis();
+
+		for (String input : inputs) {
+			futures.add(executorService.submit(() -> {
+				String output = formatOutputName(params.outputPattern, input);
+				String preview = params.previewPattern != null ? formatOutputName(params.previewPattern, input) : null;
+				long time = System.currentTimeMillis();
+				String error = null;
 				try {
-					FileOutputStream outputStream = new FileOutputStream(new File(params.paletteExport));
-					for (int i = 0; i < palette.length; i++) {
-						outputStream.write(palette[i].getRed());
-						outputStream.write(palette[i].getGreen());
-						outputStream.write(palette[i].getBlue());
+					Converter converter = convertFile(input, output, preview, engine, previous.get(), params.incremental ? paletteSource : null, false);
+					if (params.incremental) {
+						previous.set(converter);
 					}
-					outputStream.close();
+				} catch (ConversionException e) {
+					error = e.getMessage();
+					previous.set(null);
 				} catch (Exception e) {
-					e.printStackTrace();
+					previous.set(null);
+					error = e.toString();
+					if (context.isDebug()) {
+						e.printStackTrace();
+					}
 				}
+				time = System.currentTimeMillis() - time;
+
+				int count = done.incrementAndGet();
+				if (error != null) {
+					failed.incrementAndGet();
+					System.err.println(String.format("[%d/%d] %s: FAILED (%s)", count, inputs.size(), input, error));
+				} else {
+					System.err.println(String.format("[%d/%d] %s -> %s (%d ms)", count, inputs.size(), input, output, time));
+				}
+			}));
+		}
+
+		executorService.shutdown();
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
 			}
 		}
+		engine.close();
 
-		try {
-			BufferedImage outputImage = resizedImage;
-			float[] ditherArray = DITHER_ARRAYS.get(params.ditherType.toLowerCase());
-
-			if (params.ditherLevel == 0) {
-				params.ditherMode = Converter.DitherMode.NONE;
-			} else if (params.ditherLevel != 1) {
-				ditherArray = Arrays.copyOf(ditherArray, ditherArray.length);
-
-				switch (params.ditherMode) {
-					case ERROR:
-						for (int i = 0; i < ditherArray.length; i++) {
-							ditherArray[i] *= params.ditherLevel;
-						}
-						break;
-					case ORDERED:
-						float newScale = params.ditherLevel;
-						float newOffset = ditherArray.length * ((1 - params.ditherLevel) / 2.0f);
-						for (int i = 0; i < ditherArray.length; i++) {
-							if (ditherArray[i] > 0) {
-								ditherArray[i] = (ditherArray[i] - 1) * newScale + newOffset;
-							}
-						}
-						break;
+		timeB = System.currentTimeMillis() - timeB;
+		System.err.println(String.format("Converted %d of %d files in %d ms.", inputs.size() - failed.get(), inputs.size(), timeB));
+		return failed.get() == 0;
+	}
+
+	/**
+	 * Converts one image and saves it as outputName.
+	 *
+	 * @param previous The previous conversion to take unchanged cells (and,
+	 *                 if it still fits, the palette) from, or null.
+	 * @param paletteSource The image previous's palette was made for, or
+	 *                      null; set to this image if a new palette is made.
+	 */
+	private Converter convertFile(String inputName, String outputName, String previewName, ConverterEngine engine, Converter previous, AtomicReference<BufferedImage> paletteSource, boolean verbose) throws ConversionException {
+		CTIFBuffer output = new CTIFBuffer();
+		Converter writer = convertImage(inputName, output, previewName, engine, previous, paletteSource, verbose);
+		try (FileChannel channel = FileChannel.open(Paths.get(outputName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			output.writeTo(channel);
+		} catch (IOException | InvalidPathException e) {
+			throw new ConversionException(String.format("Could not write %s: %s", outputName, e.getMessage()));
+		}
+		return writer;
+	}
+
+	/**
+	 * Converts one image into output, as a CTIF file.
+	 */
+	private Converter convertImage(String inputName, CTIFBuffer output, String previewName, ConverterEngine engine, Converter previous, AtomicReference<BufferedImage> paletteSource, boolean verbose) throws ConversionException {
+		BufferedImage resizedImage = loadResizedImage(inputName, engine, verbose);
+		int width = resizedImage.getWidth();
+		int height = resizedImage.getHeight();
+
+		if (verbose && context.isDebug()) {
+			System.err.println("Using " + engine.getThreads() + " threads.");
+		}
+
+		// Compare against the image the palette was made for, not the
+		// previous one, so that small changes cannot add up over many files.
+		Color[] palette;
+		BufferedImage source = paletteSource != null ? paletteSource.get() : null;
+		if (previous != null && source != null && paletteStillFits(previous.getPalette(), source, resizedImage, 0)) {
+			palette = previous.getPalette();
+		} else {
+			palette = createPalette(resizedImage, inputName, engine.getThreads(), verbose);
+			if (paletteSource != null) {
+				paletteSource.set(resizedImage);
+			}
+		}
+
+		if (context.getPlatform().getCustomColorCount() > 0 && params.paletteExport != null) {
+			if (verbose) {
+				System.err.println("Saving palette...");
+			}
+			String paletteExport = params.batch ? formatOutputName(params.paletteExport, inputName) : params.paletteExport;
+			try {
+				FileOutputStream outputStream = new FileOutputStream(new File(paletteExport));
+				for (int i = 0; i < palette.length; i++) {
+					outputStream.write(palette[i].getRed());
+					outputStream.write(palette[i].getGreen());
+					outputStream.write(palette[i].getBlue());
 				}
+				outputStream.close();
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
+		}
 
+		BufferedImage outputImage = resizedImage;
+
+		if (verbose) {
 			System.err.println("Converting image...");
+		}
 
-			long time = System.currentTimeMillis();
-			Converter writer = new Converter(palette, resizedImage,
-					params.ditherMode,
-					ditherArray
-			);
+		long time = System.currentTimeMillis();
+		Converter writer = engine.createConverter(context, palette, resizedImage,
+				params.ditherMode,
+				ditherArray
+		);
+		writer.setIncrementalSource(previous);
+
+		outputImage = writer.write(output);
+		time = System.currentTimeMillis() - time;
+		if (verbose && context.isDebug()) {
+			System.err.println("Image conversion time: " + time + " ms");
+		}
+		if (previous != null && context.isDebug()) {
+			System.err.println(String.format("%s: reused %d of %d cells", inputName, writer.getReusedCellCount(), writer.getCellCount()));
+		}
+
+		if (previewName != null) {
+			Utils.saveImage(Utils.resizeBox(outputImage, width * 2, height * 2), new File(previewName).getAbsolutePath());
+		}
+		return writer;
+	}
+
+	/**
+	 * A palette made for one image is kept for the next one if its mean error
+	 * on the new image is at most PALETTE_REUSE_TOLERANCE times its error on
+	 * the original image, plus threshold. A fixed palette always fits.
+	 */
+	private boolean paletteStillFits(Color[] palette, BufferedImage paletteSource, BufferedImage image, float threshold) {
+		if (context.getPlatform().getCustomColorCount() == 0 || fixedPalette != null) {
+			return true;
+		}
+		return Utils.getMeanPaletteError(palette, image, context.getColorspace()) <= Utils.getMeanPaletteError(palette, paletteSource, context.getColorspace()) * PALETTE_REUSE_TOLERANCE + threshold;
+	}
+
+	/**
+	 * The built-in resampler splits rows over the engine's pool, if any.
+	 */
+	private BufferedImage loadResizedImage(String inputName, ConverterEngine engine, boolean verbose) throws ConversionException {
+		// Large images are decoded at a reduced size, which only needs their
+		// size up front; if the header cannot be read, decode first.
+		BufferedImage image = null;
+		Dimension sourceSize = Utils.getImageSize(inputName);
+		if (sourceSize == null) {
+			image = Utils.loadImage(inputName);
+			if (image == null) {
+				throw new ConversionException(String.format("Could not load image: %s", inputName));
+			}
+			sourceSize = new Dimension(image.getWidth(), image.getHeight());
+		}
+
+		int width = (params.w > 0) ? rCeil(params.w, context.getPlatform().getCharWidth()) : 0;
+		int height = (params.h > 0) ? rCeil(params.h, context.getPlatform().getCharHeight()) : 0;
+
+		if (width == 0) width = context.getPlatform().getWidthPx();
+		if (height == 0) height = context.getPlatform().getHeightPx();
+
+		if (!params.ignoreAspectRatio) {
+			float x = (params.ignoreAspectRatio ? context.getPlatform().getDefaultAspectRatio() : (float) sourceSize.width / sourceSize.height);
+			float y = 1.0f;
+			float a = Math.min(Math.min(
+					(float) width / x,
+					(float) height / y),
+					(float) Math.sqrt((float) context.getPlatform().getCharsPx() / (x * y)));
+			width = rCeil((int) Math.floor(x * a), context.getPlatform().getCharWidth());
+			height = rCeil((int) Math.floor(y * a), context.getPlatform().getCharHeight());
+		}
+
+		if (verbose) {
+			System.out.println(width + " " + height);
+		}
 
+		if (width * height > context.getPlatform().getCharsPx()) {
+			throw new ConversionException(String.format("Size too large: %dx%d (maximum size: %d pixels)", width, height, context.getPlatform().getCharsPx()));
+		} else if (width > context.getPlatform().getWidthPx()) {
+			throw new ConversionException(String.format("Width too large: %d (maximum width: %d)", width, context.getPlatform().getWidthPx()));
+		} else if (height > context.getPlatform().getHeightPx()) {
+			throw new ConversionException(String.format("Height too large: %d (maximum height: %d)", height, context.getPlatform().getHeightPx()));
+		}
+
+		if (image == null) {
+			image = Utils.loadImage(inputName, width * DECODE_SIZE_FACTOR, height * DECODE_SIZE_FACTOR);
+			if (image == null) {
+				throw new ConversionException(String.format("Could not load image: %s", inputName));
+			}
+		}
+
+		if (verbose) {
+			System.err.println("Resizing image...");
+		}
+		long timeR = System.currentTimeMillis();
+
+		BufferedImage resizedImage;
+		if (image.getWidth() == width && image.getHeight() == height) {
+			resizedImage = image;
+		} else if (params.resizeMode == ResizeMode.SPEED) {
+			resizedImage = Utils.resizeBox(image, width, height);
+		} else if (params.resizeMode == ResizeMode.LANCZOS) {
+			resizedImage = Resampler.resize(image, width, height, Resampler.Filter.LANCZOS, engine.getPool());
+		} else if (params.resizeMode == ResizeMode.MITCHELL) {
+			resizedImage = Resampler.resize(image, width, height, Resampler.Filter.MITCHELL, engine.getPool());
+		} else {
+			resizedImage = Utils.resize(image, width, height, params.resizeMode == ResizeMode.QUALITY_NATIVE, engine.getPool());
+		}
+
+		timeR = System.currentTimeMillis() - timeR;
+		if (verbose && context.isDebug()) {
+			System.err.println("Image resize time: " + timeR + " ms");
+		}
+
+		// Everything after this reads the pixels, so make that cheap once.
+		return Utils.toIntRGB(resizedImage);
+	}
+
+	/**
+	 * @param inputName The source file, read again at up to full resolution
+	 *                  when streaming palette generation is enabled.
+	 */
+	private Color[] createPalette(BufferedImage image, String inputName, int threads, boolean verbose) throws ConversionException {
+		Color[] palette = fixedPalette != null ? fixedPalette.clone() : context.getPlatform().getPalette();
+
+		if (context.getPlatform().getCustomColorCount() > 0 && fixedPalette == null) {
+			long time = System.currentTimeMillis();
+			if (verbose) {
+				System.err.println("Generating palette...");
+			}
+			int colors = context.getPlatform().getCustomColorCount();
 			try {
-				outputImage = writer.write(new FileOutputStream(params.outputFilename != null ? params.outputFilename : params.files.get(0) + ".ctif"));
-			} catch (Exception e) {
-				e.printStackTrace();
+				switch (params.paletteGenerator) {
+					case KMEANS:
+					default:
+						palette = new PaletteGeneratorKMeans(context, image, palette, colors, params.paletteSamplingResolution, params.seed).generate(threads);
+						break;
+					case KMEANS_STREAMING:
+						try (TileSource source = openTileSource(inputName, image)) {
+							palette = new PaletteGeneratorMiniBatch(context, source, palette, colors, params.seed).generate(threads);
+						}
+						break;
+					case MEDIAN_CUT:
+						palette = new PaletteGeneratorMedianCut(context, image, palette, colors, params.paletteSamplingResolution).generate(threads);
+						break;
+					case MEDIAN_CUT_KMEANS: {
+						Color[] initial = new PaletteGeneratorMedianCut(context, image, palette, colors, params.paletteSamplingResolution).generate(threads);
+						PaletteGeneratorKMeans generator = new PaletteGeneratorKMeans(context, image, palette, colors, params.paletteSamplingResolution, params.seed);
+						generator.setInitialColors(initial);
+						palette = generator.generate(threads);
+						break;
+					}
+				}
+			} catch (IOException e) {
+				throw new ConversionException(String.format("Could not read %s: %s", inputName, e.getMessage()));
 			}
 			time = System.currentTimeMillis() - time;
-			if (DEBUG) {
-				System.err.println("Image conversion time: " + time + " ms");
+			if (verbose && context.isDebug()) {
+				System.err.println("Palette generation time: " + time + " ms");
 			}
+		}
+
+		return palette;
+	}
 
-			if (params.previewFilename != null) {
-				Utils.saveImage(Utils.resizeBox(outputImage, width * 2, height * 2), new File(params.previewFilename).getAbsolutePath());
+	private static TileSource openTileSource(String inputName, BufferedImage fallback) throws IOException {
+		TileSource source = TileSource.open(new File(inputName), PaletteGeneratorMiniBatch.MAX_STRIP_PIXELS);
+		return source != null ? source : TileSource.of(fallback);
+	}
+
+	/**
+	 * Converts every input file as one frame of an animated CTIF file.
+	 */
+	private void convertAnimation(String outputName, ConverterEngine engine) throws ConversionException {
+		List<String> inputs;
+		try {
+			inputs = expandInputs(params.files);
+		} catch (IOException e) {
+			throw new ConversionException(String.format("Could not list input files: %s", e.getMessage()));
+		}
+		if (inputs.isEmpty()) {
+			throw new ConversionException("No input files found!");
+		}
+
+		long time = System.currentTimeMillis();
+		Converter previous = null;
+		Color[] palette = null;
+		BufferedImage paletteSource = null;
+		int paletteCount = 0;
+		int reusedCells = 0;
+
+		try (CTIFAnimationWriter writer = new CTIFAnimationWriter(FileChannel.open(Paths.get(outputName),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), params.keyframeInterval)) {
+			for (int i = 0; i < inputs.size(); i++) {
+				String inputName = inputs.get(i);
+				System.err.println(String.format("[%d/%d] %s", i + 1, inputs.size(), inputName));
+				BufferedImage resizedImage = loadResizedImage(inputName, engine, false);
+
+				// A new palette forces a keyframe, so the last one is kept for
+				// as long as it still fits.
+				if (palette == null || !paletteStillFits(palette, paletteSource, resizedImage, params.temporalThreshold)) {
+					palette = createPalette(resizedImage, inputName, engine.getThreads(), false);
+					paletteSource = resizedImage;
+					paletteCount++;
+				}
+
+				Converter converter = engine.createConverter(context, palette, resizedImage, params.ditherMode, ditherArray);
+				if (params.incremental) {
+					converter.setIncrementalSource(previous);
+				}
+				if (params.temporalThreshold > 0) {
+					converter.setPreviousFrame(previous, params.temporalThreshold);
+				}
+
+				BufferedImage outputImage = writer.writeFrame(converter, params.frameDelay);
+				if (params.previewPattern != null) {
+					Utils.saveImage(Utils.resizeBox(outputImage, resizedImage.getWidth() * 2, resizedImage.getHeight() * 2),
+							new File(formatOutputName(params.previewPattern, inputName)).getAbsolutePath());
+				}
+				reusedCells += converter.getReusedCellCount();
+				previous = converter;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			throw new ConversionException(String.format("Could not write %s: %s", outputName, e.getMessage()));
+		} catch (IllegalArgumentException e) {
+			throw new ConversionException(e.getMessage());
+		}
+
+		time = System.currentTimeMillis() - time;
+		System.err.println(String.format("Wrote %d frames (%d palettes) in %d ms.", inputs.size(), paletteCount, time));
+		if (context.isDebug() && params.incremental) {
+			System.err.println("Reused " + reusedCells + " unchanged cells.");
 		}
 	}
-}
\ No newline at end of file
+}
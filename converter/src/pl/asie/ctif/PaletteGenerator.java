@@ -0,0 +1,12 @@
+package pl.asie.ctif;
+
+import java.awt.Color;
+import java.io.IOException;
+
+public interface PaletteGenerator {
+    /**
+     * @return A copy of the base palette, with its first (custom) colours
+     * replaced by generated ones.
+     */
+    Color[] generate(int threads) throws IOException;
+}
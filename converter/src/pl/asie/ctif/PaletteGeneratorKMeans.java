@@ -2,12 +2,16 @@ package pl.asie.ctif;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
-public class PaletteGeneratorKMeans {
+public class PaletteGeneratorKMeans implements PaletteGenerator {
     static class Result {
         final Color[] colors;
         final double error;
@@ -19,29 +23,108 @@ public class PaletteGeneratorKMeans {
     }
 
     public class Worker implements Runnable {
+        private final int restart;
         public Result result;
 
+        public Worker(int restart) {
+            this.restart = restart;
+        }
+
         @Override
         public void run() {
-            result = generateKMeans();
+            Random random = new Random(getRestartSeed(restart));
+            float[][] centroids;
+            if (restart == 0 && initialCentroids != null) {
+                centroids = new float[colors][];
+                for (int i = 0; i < colors; i++) {
+                    centroids[i] = initialCentroids[i].clone();
+                }
+            } else {
+                centroids = seedCentroids(random);
+            }
+            result = generateKMeans(centroids);
         }
     }
 
+    // Stop iterating once an iteration improves the error by less than this fraction.
+    private static final double CONVERGENCE_THRESHOLD = 1e-5;
+    // Relative safety margin for the assignment bounds, well above float rounding error.
+    private static final double BOUND_EPSILON = 1e-4;
+    private static final int RESTART_BATCH_SIZE = 4;
+    // Stop restarting once a batch improves the best error by less than this fraction.
+    private static final double RESTART_MIN_IMPROVEMENT = 0.005;
+
+    private final ConversionContext context;
     private final int colors;
-    private final BufferedImage image;
     private final Color[] base;
-    private final Random random = new Random();
-    private final Map<Integer, float[]> pointsAdded = new HashMap<>();
-    private final Map<float[], Integer> pointsWeight = new HashMap<>();
-    private final float[][] centroids;
-    private final Map<float[], Double> knownBestError = new HashMap<>();
-    private final Map<float[], Integer> knownBestCentroid = new HashMap<>();
-
-    public PaletteGeneratorKMeans(BufferedImage image, Color[] base, int colors, int samplingRes) {
+    private final long seed;
+    private float[][] initialCentroids;
+    // Per unique colour: three colourspace components, weight, and the
+    // nearest fixed (non-generated) palette entry with its error.
+    private final int pointCount;
+    private final float[] points;
+    private final int[] pointWeights;
+    private final double[] knownBestError;
+    private final int[] knownBestCentroid;
+
+    public PaletteGeneratorKMeans(ConversionContext context, BufferedImage image, Color[] base, int colors, int samplingRes) {
+        this(context, image, base, colors, samplingRes, new Random().nextLong());
+    }
+
+    /**
+     * @param seed The seed for sampling and for every restart. The same seed
+     *             and input always give the same palette, regardless of the
+     *             amount of threads.
+     */
+    public PaletteGeneratorKMeans(ConversionContext context, BufferedImage image, Color[] base, int colors, int samplingRes, long seed) {
+        this(context, sample(context, image, samplingRes, seed), base, colors, seed);
+    }
+
+    /**
+     * Uses each of the first count pixels, without sampling them further;
+     * meant for pixels that already are a sample.
+     */
+    PaletteGeneratorKMeans(ConversionContext context, int[] pixels, int count, Color[] base, int colors, long seed) {
+        this(context, createHistogram(pixels, count), base, colors, seed);
+    }
+
+    private PaletteGeneratorKMeans(ConversionContext context, ColorHistogram histogram, Color[] base, int colors, long seed) {
+        this.context = context;
         this.colors = colors;
-        this.image = image;
         this.base = base;
-        this.centroids = new float[base.length][];
+        this.seed = seed;
+        float[][] centroids = new float[base.length][];
+
+        for (int i = colors; i < centroids.length; i++) {
+            centroids[i] = context.getColorspace().fromRGB(base[i].getRGB());
+        }
+
+        pointCount = histogram.size();
+        points = new float[pointCount * 3];
+        pointWeights = histogram.getWeights();
+        knownBestError = new double[pointCount];
+        knownBestCentroid = new int[pointCount];
+        context.getColorspace().fromRGB(histogram.getColors(), 0, points, 0, pointCount);
+
+        for (int p = 0; p < pointCount; p++) {
+            double bestError = Float.MAX_VALUE;
+            int bestCentroid = 0;
+            for (int i = colors; i < centroids.length; i++) {
+                double err = Utils.getColorDistanceSq(points, p * 3, centroids[i], 0);
+                if (err < bestError) {
+                    bestError = err;
+                    bestCentroid = i;
+                    if (err == 0) break;
+                }
+            }
+            knownBestError[p] = bestError;
+            knownBestCentroid[p] = bestCentroid;
+        }
+    }
+
+    private static ColorHistogram sample(ConversionContext context, BufferedImage image, int samplingRes, long seed) {
+        ColorHistogram histogram = new ColorHistogram();
+        Random random = new Random(seed);
 
         if (samplingRes > 0) {
             int maximum = samplingRes;
@@ -52,132 +135,257 @@ public class PaletteGeneratorKMeans {
             for (int jy = 0; jy < maximum; jy++) {
                 for (int jx = 0; jx < maximum * 2; jx++) {
                     int i = image.getRGB(random.nextInt(stepIX) + (int) ((jx % maximum) * stepX), random.nextInt(stepIY) + (int) (jy * stepY));
-                    if (!pointsAdded.containsKey(i)) {
-                        float[] key = Main.COLORSPACE.fromRGB(i);
-                        pointsAdded.put(i, key);
-                        pointsWeight.put(key, 1);
-                    } else {
-                        pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-                    }
+                    histogram.add(i);
                 }
             }
         } else {
-            if (Main.OPTIMIZATION_LEVEL >= 3 && (image.getWidth() * image.getHeight() >= 4096)) {
+            if (context.getOptimizationLevel() >= 3 && (image.getWidth() * image.getHeight() >= 4096)) {
                 for (int jy = 0; jy < image.getHeight(); jy += 4) {
                     int my = Math.min(4, image.getHeight() - jy);
                     for (int jx = 0; jx < image.getWidth(); jx += 4) {
                         int mx = Math.min(4, image.getWidth() - jx);
 
                         int i = image.getRGB(random.nextInt(mx) + jx, random.nextInt(my) + jy);
-                        if (!pointsAdded.containsKey(i)) {
-                            float[] key = Main.COLORSPACE.fromRGB(i);
-                            pointsAdded.put(i, key);
-                            pointsWeight.put(key, 1);
-                        } else {
-                            pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-                        }
+                        histogram.add(i);
                     }
                 }
             } else {
                 for (int i : Utils.getRGB(image)) {
-                    if (!pointsAdded.containsKey(i)) {
-                        float[] key = Main.COLORSPACE.fromRGB(i);
-                        pointsAdded.put(i, key);
-                        pointsWeight.put(key, 1);
-                    } else {
-                        pointsWeight.put(pointsAdded.get(i), pointsWeight.get(pointsAdded.get(i)) + 1);
-                    }
+                    histogram.add(i);
                 }
             }
         }
+        return histogram;
+    }
 
-        for (int i = colors; i < centroids.length; i++) {
-            centroids[i] = Main.COLORSPACE.fromRGB(base[i].getRGB());
+    private static ColorHistogram createHistogram(int[] pixels, int count) {
+        ColorHistogram histogram = new ColorHistogram();
+        for (int i = 0; i < count; i++) {
+            histogram.add(pixels[i]);
         }
+        return histogram;
+    }
 
-        for (Map.Entry<float[], Integer> weight : pointsWeight.entrySet()) {
-            double bestError = Float.MAX_VALUE;
-            int bestCentroid = 0;
-            for (int i = colors; i < centroids.length; i++) {
-                double err = Utils.getColorDistanceSq(weight.getKey(), centroids[i]);
-                if (err < bestError) {
-                    bestError = err;
-                    bestCentroid = i;
-                    if (err == 0) break;
-                }
-            }
-            knownBestError.put(weight.getKey(), bestError);
-            knownBestCentroid.put(weight.getKey(), bestCentroid);
+    /**
+     * Makes the first restart start from the given palette's custom colours
+     * (for example, another generator's output) instead of k-means++.
+     */
+    public void setInitialColors(Color[] initial) {
+        initialCentroids = new float[colors][];
+        for (int i = 0; i < colors; i++) {
+            initialCentroids[i] = context.getColorspace().fromRGB(initial[i].getRGB());
         }
     }
 
+    /**
+     * Runs k-means restarts in batches of RESTART_BATCH_SIZE, up to
+     * 20 / (optimization level + 1) restarts. Stops early once a batch
+     * improves the best error by less than RESTART_MIN_IMPROVEMENT. The
+     * batches do not depend on the amount of threads, so the result does
+     * not either.
+     */
+    @Override
     public Color[] generate(int threads) {
         Result bestResult = null;
-        Worker[] workers = new Worker[20 / (Main.OPTIMIZATION_LEVEL + 1)];
+        int maxRestarts = 20 / (context.getOptimizationLevel() + 1);
+        int restarts = 0;
         ExecutorService executorService = Executors.newFixedThreadPool(threads);
 
-        for (int i = 0; i < workers.length; i++) {
-            workers[i] = new Worker();
-            executorService.submit(workers[i]);
-        }
-
-        executorService.shutdown();
         try {
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+            while (restarts < maxRestarts) {
+                Worker[] workers = new Worker[Math.min(RESTART_BATCH_SIZE, maxRestarts - restarts)];
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < workers.length; i++) {
+                    workers[i] = new Worker(restarts + i);
+                    futures.add(executorService.submit(workers[i]));
+                }
 
-        for (int i = 0; i < workers.length; i++) {
-            Result result = workers[i].result;
-            if (Main.DEBUG) {
-                System.out.println("Palette generator worker #" + (i + 1) + " error = " + result.error);
-            }
-            if (bestResult == null || bestResult.error > result.error) {
-                bestResult = result;
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                double previousError = bestResult != null ? bestResult.error : Double.MAX_VALUE;
+                for (int i = 0; i < workers.length; i++) {
+                    Result result = workers[i].result;
+                    if (context.isDebug()) {
+                        System.out.println("Palette generator worker #" + (restarts + i + 1) + " error = " + result.error);
+                    }
+                    if (bestResult == null || bestResult.error > result.error) {
+                        bestResult = result;
+                    }
+                }
+                restarts += workers.length;
+
+                if (previousError != Double.MAX_VALUE && previousError - bestResult.error <= previousError * RESTART_MIN_IMPROVEMENT) {
+                    break;
+                }
             }
+        } finally {
+            executorService.shutdown();
         }
 
-        if (Main.DEBUG) {
-            System.out.println("Palette generator error = " + bestResult.error);
+        if (context.isDebug()) {
+            System.out.println("Palette generator error = " + bestResult.error + " (" + restarts + " restarts)");
         }
 
         return bestResult.colors;
     }
 
-    private Result generateKMeans() {
+    private long getRestartSeed(int restart) {
+        // Spread the restart seeds apart so that neighbouring restarts do not
+        // get correlated java.util.Random streams.
+        return seed ^ ((restart + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    private float[][] seedCentroids(Random random) {
+        double[] nearest = new double[pointCount];
+        boolean hasFixedColors = base.length > colors;
+        for (int p = 0; p < pointCount; p++) {
+            nearest[p] = hasFixedColors ? knownBestError[p] : 1.0;
+        }
+        return seedCentroids(points, pointWeights, nearest, pointCount, colors, random);
+    }
+
+    /**
+     * Picks initial centroids using k-means++: each one is one of the points,
+     * chosen with probability proportional to its weight times its squared
+     * distance to the nearest centroid so far.
+     *
+     * @param nearest The squared distance from each point to the nearest
+     *                entry already in the palette, or 1 for every point if
+     *                there are none. Updated as centroids are picked.
+     */
+    static float[][] seedCentroids(float[] points, int[] weights, double[] nearest, int pointCount, int colors, Random random) {
+        float[][] centroids = new float[colors][];
+
         for (int i = 0; i < colors; i++) {
-            centroids[i] = Main.COLORSPACE.fromRGB(image.getRGB(random.nextInt(image.getWidth()), random.nextInt(image.getHeight())));
+            double total = 0;
+            for (int p = 0; p < pointCount; p++) {
+                total += nearest[p] * weights[p];
+            }
+
+            int chosen = pointCount - 1;
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int p = 0; p < pointCount; p++) {
+                    target -= nearest[p] * weights[p];
+                    if (target < 0) {
+                        chosen = p;
+                        break;
+                    }
+                }
+            } else {
+                // Every colour is already matched exactly.
+                chosen = random.nextInt(pointCount);
+            }
+
+            centroids[i] = Arrays.copyOfRange(points, chosen * 3, chosen * 3 + 3);
+            for (int p = 0; p < pointCount; p++) {
+                double err = Utils.getColorDistanceSq(points, p * 3, centroids[i], 0);
+                if (err < nearest[p]) {
+                    nearest[p] = err;
+                }
+            }
         }
 
+        return centroids;
+    }
+
+    private Result generateKMeans(float[][] centroids) {
         double totalError = 0;
+        double previousError = Double.MAX_VALUE;
+
+        // Hamerly-style bounds. assigned[p] is the entry point p was assigned
+        // to last time; lowerBound[p] is a lower bound on the distance (not
+        // squared) from p to every generated centroid other than assigned[p].
+        // The distance to the assigned entry is always recomputed exactly, so
+        // errors and means come out exactly as with a full search.
+        int[] assigned = new int[pointCount];
+        double[] lowerBound = new double[pointCount];
+        double[] halfSeparation = new double[colors];
+        float[][] oldCentroids = new float[colors][3];
+        double maxMove = 0;
+        Arrays.fill(lowerBound, -1);
 
         for (int reps = 0; reps < 128; reps++) {
-            float[][] means = new float[centroids.length][3];
-            int[] meanDivs = new int[centroids.length];
+            float[][] means = new float[base.length][3];
+            int[] meanDivs = new int[base.length];
+
+            for (int i = 0; i < colors; i++) {
+                double nearest = Double.MAX_VALUE;
+                for (int j = 0; j < colors; j++) {
+                    if (i != j) {
+                        nearest = Math.min(nearest, Math.sqrt(Utils.getColorDistanceSq(centroids[i], centroids[j])));
+                    }
+                }
+                halfSeparation[i] = nearest / 2;
+            }
 
             totalError = 0;
-            for (Map.Entry<float[], Integer> weight : pointsWeight.entrySet()) {
-                double bestError = knownBestError.get(weight.getKey());
-                int bestCentroid = knownBestCentroid.get(weight.getKey());
-                int mul = weight.getValue();
+            for (int p = 0; p < pointCount; p++) {
+                int po = p * 3;
+                int mul = pointWeights[p];
+                double bestError = -1;
+                int bestCentroid = assigned[p];
 
-                for (int i = 0; i < colors; i++) {
-                    double err = Utils.getColorDistanceSq(weight.getKey(), centroids[i]);
-                    if (err < bestError) {
-                        bestError = err;
-                        bestCentroid = i;
-                        if (err == 0) break;
+                lowerBound[p] -= maxMove * (1 + BOUND_EPSILON);
+                if (lowerBound[p] > 0) {
+                    if (bestCentroid >= colors) {
+                        // Assigned to a fixed entry, which wins ties.
+                        if (Math.sqrt(knownBestError[p]) * (1 + BOUND_EPSILON) < lowerBound[p]) {
+                            bestError = knownBestError[p];
+                        }
+                    } else {
+                        double err = Utils.getColorDistanceSq(points, po, centroids[bestCentroid], 0);
+                        double bound = Math.max(lowerBound[p], halfSeparation[bestCentroid]);
+                        if (err < knownBestError[p] && Math.sqrt(err) * (1 + BOUND_EPSILON) < bound) {
+                            bestError = err;
+                        }
                     }
                 }
 
+                if (bestError < 0) {
+                    bestError = knownBestError[p];
+                    bestCentroid = knownBestCentroid[p];
+                    double nearestError = Double.MAX_VALUE;
+                    double secondError = Double.MAX_VALUE;
+
+                    for (int i = 0; i < colors; i++) {
+                        double err = Utils.getColorDistanceSq(points, po, centroids[i], 0);
+                        if (err < bestError) {
+                            bestError = err;
+                            bestCentroid = i;
+                        }
+                        if (err < nearestError) {
+                            secondError = nearestError;
+                            nearestError = err;
+                        } else if (err < secondError) {
+                            secondError = err;
+                        }
+                    }
+
+                    // The nearest centroid is the assigned one, unless a fixed
+                    // entry won.
+                    double otherError = bestCentroid < colors ? secondError : nearestError;
+                    lowerBound[p] = otherError == Double.MAX_VALUE ? -1 : Math.sqrt(otherError) * (1 - BOUND_EPSILON);
+                    assigned[p] = bestCentroid;
+                }
+
                 totalError += bestError * mul;
-                means[bestCentroid][0] += weight.getKey()[0] * mul;
-                means[bestCentroid][1] += weight.getKey()[1] * mul;
-                means[bestCentroid][2] += weight.getKey()[2] * mul;
+                means[bestCentroid][0] += points[po] * mul;
+                means[bestCentroid][1] += points[po + 1] * mul;
+                means[bestCentroid][2] += points[po + 2] * mul;
                 meanDivs[bestCentroid] += mul;
             }
 
+            for (int i = 0; i < colors; i++) {
+                System.arraycopy(centroids[i], 0, oldCentroids[i], 0, 3);
+            }
+
             boolean changed = false;
             for (int i = 0; i < colors; i++) {
                 if (meanDivs[i] > 0) {
@@ -192,14 +400,20 @@ public class PaletteGeneratorKMeans {
                     }
                 }
             }
-            if (!changed) {
+            maxMove = 0;
+            for (int i = 0; i < colors; i++) {
+                maxMove = Math.max(maxMove, Math.sqrt(Utils.getColorDistanceSq(oldCentroids[i], centroids[i])));
+            }
+
+            if (!changed || previousError - totalError <= previousError * CONVERGENCE_THRESHOLD) {
                 break;
             }
+            previousError = totalError;
         }
 
         Color[] out = Arrays.copyOf(base, base.length);
         for (int k = 0; k < colors; k++) {
-            out[k] = new Color(Main.COLORSPACE.toRGB(centroids[k]) | 0xFF000000);
+            out[k] = new Color(context.getColorspace().toRGB(centroids[k]) | 0xFF000000);
         }
         return new Result(out, totalError);
     }
@@ -0,0 +1,190 @@
+package pl.asie.ctif;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Generates a palette in one pass with median cut: the image's colours,
+ * in the active colourspace, are split into boxes until there is one box per
+ * colour, and every box becomes its weighted mean. The box with the largest
+ * weighted squared error is split next, at the weighted median of its axis
+ * with the largest variance.
+ *
+ * When the platform also has fixed palette entries, each colour is weighted
+ * by its count times its distance to the nearest fixed entry, so the
+ * generated colours go where the fixed ones fit worst.
+ */
+public class PaletteGeneratorMedianCut implements PaletteGenerator {
+    private final ConversionContext context;
+    private final Color[] base;
+    private final int colors;
+    private final int pointCount;
+    private final float[] points;
+    private final int[] counts;
+    private final double[] weights;
+
+    public PaletteGeneratorMedianCut(ConversionContext context, BufferedImage image, Color[] base, int colors, int samplingRes) {
+        this.context = context;
+        this.base = base;
+        this.colors = colors;
+
+        ColorHistogram histogram = new ColorHistogram();
+        if (samplingRes > 0) {
+            // Sample a regular grid, so that the result stays deterministic.
+            int stepX = Math.max(1, image.getWidth() / samplingRes);
+            int stepY = Math.max(1, image.getHeight() / samplingRes);
+            for (int y = stepY / 2; y < image.getHeight(); y += stepY) {
+                for (int x = stepX / 2; x < image.getWidth(); x += stepX) {
+                    histogram.add(image.getRGB(x, y));
+                }
+            }
+        } else {
+            for (int i : Utils.getRGB(image)) {
+                histogram.add(i);
+            }
+        }
+
+        pointCount = histogram.size();
+        points = new float[pointCount * 3];
+        counts = histogram.getWeights();
+        weights = new double[pointCount];
+        context.getColorspace().fromRGB(histogram.getColors(), 0, points, 0, pointCount);
+
+        float[] fixedColors = new float[(base.length - colors) * 3];
+        for (int i = colors; i < base.length; i++) {
+            context.getColorspace().fromRGB(base[i].getRGB(), fixedColors, (i - colors) * 3);
+        }
+
+        for (int p = 0; p < pointCount; p++) {
+            double nearest = fixedColors.length > 0 ? Double.MAX_VALUE : 1.0;
+            for (int i = 0; i < fixedColors.length; i += 3) {
+                nearest = Math.min(nearest, Utils.getColorDistanceSq(points, p * 3, fixedColors, i));
+            }
+            weights[p] = counts[p] * nearest;
+        }
+    }
+
+    @Override
+    public Color[] generate(int threads) {
+        // Boxes are ranges of order[]; box i covers boxStart[i]..boxEnd[i]-1.
+        int[] order = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            order[i] = i;
+        }
+        int[] boxStart = new int[colors];
+        int[] boxEnd = new int[colors];
+        int[] boxAxis = new int[colors];
+        double[] boxScore = new double[colors];
+        int boxes = 1;
+        boxEnd[0] = pointCount;
+        measureBox(order, 0, pointCount, boxAxis, boxScore, 0);
+
+        long[] keys = new long[pointCount];
+        while (boxes < colors) {
+            int bestBox = -1;
+            for (int b = 0; b < boxes; b++) {
+                if (boxScore[b] > 0 && (bestBox < 0 || boxScore[b] > boxScore[bestBox])) {
+                    bestBox = b;
+                }
+            }
+
+            if (bestBox < 0) {
+                // Every remaining box holds a single colour, or no weight.
+                break;
+            }
+
+            int start = boxStart[bestBox];
+            int end = boxEnd[bestBox];
+            int axis = boxAxis[bestBox];
+            for (int i = start; i < end; i++) {
+                keys[i] = ((long) sortableBits(points[order[i] * 3 + axis]) << 32) | order[i];
+            }
+            Arrays.sort(keys, start, end);
+
+            double total = 0;
+            for (int i = start; i < end; i++) {
+                order[i] = (int) keys[i];
+                total += weights[order[i]];
+            }
+
+            // Split after the weighted median, keeping both halves non-empty.
+            int split = start + 1;
+            double sum = weights[order[start]];
+            while (split < end - 1 && sum + weights[order[split]] <= total / 2) {
+                sum += weights[order[split++]];
+            }
+
+            boxStart[boxes] = split;
+            boxEnd[boxes] = end;
+            boxEnd[bestBox] = split;
+            measureBox(order, start, split, boxAxis, boxScore, bestBox);
+            measureBox(order, split, end, boxAxis, boxScore, boxes);
+            boxes++;
+        }
+
+        Color[] out = Arrays.copyOf(base, base.length);
+        float[] mean = new float[3];
+        for (int b = 0; b < boxes; b++) {
+            double[] sum = new double[3];
+            double total = 0;
+            for (int i = boxStart[b]; i < boxEnd[b]; i++) {
+                int p = order[i];
+                for (int k = 0; k < 3; k++) {
+                    sum[k] += points[p * 3 + k] * (double) counts[p];
+                }
+                total += counts[p];
+            }
+            for (int k = 0; k < 3; k++) {
+                mean[k] = (float) (sum[k] / total);
+            }
+            out[b] = new Color(context.getColorspace().toRGB(mean) | 0xFF000000);
+        }
+        return out;
+    }
+
+    /**
+     * Scores a box by its weighted squared error around its mean, and picks
+     * the axis with the largest variance to split it along.
+     */
+    private void measureBox(int[] order, int start, int end, int[] boxAxis, double[] boxScore, int box) {
+        double weight = 0;
+        double[] sum = new double[3];
+        double[] sumSq = new double[3];
+        for (int i = start; i < end; i++) {
+            int p = order[i];
+            double w = weights[p];
+            weight += w;
+            for (int k = 0; k < 3; k++) {
+                double v = points[p * 3 + k];
+                sum[k] += v * w;
+                sumSq[k] += v * v * w;
+            }
+        }
+
+        boxAxis[box] = 0;
+        boxScore[box] = 0;
+        if (end - start < 2 || weight <= 0) {
+            return;
+        }
+
+        double bestVariance = -1;
+        for (int k = 0; k < 3; k++) {
+            double variance = sumSq[k] - sum[k] * sum[k] / weight;
+            boxScore[box] += variance;
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                boxAxis[box] = k;
+            }
+        }
+    }
+
+    /**
+     * @return The float's bits, flipped so that they sort like the floats do
+     * when compared as signed ints.
+     */
+    private static int sortableBits(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+}
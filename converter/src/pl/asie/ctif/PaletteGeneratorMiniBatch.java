@@ -0,0 +1,163 @@
+package pl.asie.ctif;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds a palette with mini-batch k-means, reading the image one strip at
+ * a time, so that memory use does not depend on the image size.
+ *
+ * The image is read twice. The first pass keeps a fixed-size random sample
+ * of pixels, which PaletteGeneratorKMeans turns into the initial palette.
+ * The second pass refines it in mini-batches: every sampled pixel moves its
+ * nearest generated colour towards it, by a step that shrinks as that colour
+ * collects more pixels.
+ */
+public class PaletteGeneratorMiniBatch implements PaletteGenerator {
+    private interface StripConsumer {
+        void accept(int[] rgb, int pixels);
+    }
+
+    private static final int RESERVOIR_SIZE = 4096;
+    private static final int BATCH_SIZE = 1024;
+    // Every strip contributes one sample per this many pixels.
+    private static final int PIXELS_PER_SAMPLE = 16;
+    static final int MAX_STRIP_PIXELS = 1 << 22;
+
+    private final ConversionContext context;
+    private final TileSource source;
+    private final Color[] base;
+    private final int colors;
+    private final long seed;
+    private final float[] fixedColors;
+
+    public PaletteGeneratorMiniBatch(ConversionContext context, TileSource source, Color[] base, int colors, long seed) {
+        this.context = context;
+        this.source = source;
+        this.base = base;
+        this.colors = colors;
+        this.seed = seed;
+
+        int[] fixedRGB = new int[base.length - colors];
+        for (int i = colors; i < base.length; i++) {
+            fixedRGB[i - colors] = base[i].getRGB();
+        }
+        this.fixedColors = new float[fixedRGB.length * 3];
+        context.getColorspace().fromRGB(fixedRGB, 0, fixedColors, 0, fixedRGB.length);
+    }
+
+    @Override
+    public Color[] generate(int threads) throws IOException {
+        Random random = new Random(seed);
+
+        // Pass 1: reservoir sampling over the samples of every strip.
+        int[] reservoir = new int[RESERVOIR_SIZE];
+        long[] seen = new long[1];
+        forEachStrip(source, (rgb, pixels) -> {
+            int samples = Math.max(1, pixels / PIXELS_PER_SAMPLE);
+            for (int i = 0; i < samples; i++) {
+                int pixel = rgb[random.nextInt(pixels)];
+                if (seen[0] < reservoir.length) {
+                    reservoir[(int) seen[0]] = pixel;
+                } else {
+                    long j = (long) (random.nextDouble() * (seen[0] + 1));
+                    if (j < reservoir.length) {
+                        reservoir[(int) j] = pixel;
+                    }
+                }
+                seen[0]++;
+            }
+        });
+
+        // The reservoir already is a sample, so k-means gets all of it.
+        int reservoirSize = (int) Math.min(seen[0], reservoir.length);
+        Color[] initial = new PaletteGeneratorKMeans(context, reservoir, reservoirSize, base, colors, seed).generate(threads);
+        float[] centroids = new float[colors * 3];
+        int[] initialRGB = new int[colors];
+        for (int i = 0; i < colors; i++) {
+            initialRGB[i] = initial[i].getRGB();
+        }
+        context.getColorspace().fromRGB(initialRGB, 0, centroids, 0, colors);
+
+        // Each colour starts with the weight of the reservoir pixels nearest to it.
+        int[] counts = new int[colors];
+        float[] points = new float[reservoirSize * 3];
+        context.getColorspace().fromRGB(reservoir, 0, points, 0, reservoirSize);
+        for (int i = 0; i < reservoirSize; i++) {
+            int nearest = findNearest(points, i * 3, centroids);
+            if (nearest >= 0) {
+                counts[nearest]++;
+            }
+        }
+
+        // Pass 2: mini-batch refinement.
+        int[] batchRGB = new int[BATCH_SIZE];
+        float[] batch = new float[BATCH_SIZE * 3];
+        int[] assigned = new int[BATCH_SIZE];
+        forEachStrip(source, (rgb, pixels) -> {
+            int samples = Math.max(1, pixels / PIXELS_PER_SAMPLE);
+            for (int done = 0; done < samples; done += BATCH_SIZE) {
+                int n = Math.min(BATCH_SIZE, samples - done);
+                for (int i = 0; i < n; i++) {
+                    batchRGB[i] = rgb[random.nextInt(pixels)];
+                }
+                context.getColorspace().fromRGB(batchRGB, 0, batch, 0, n);
+
+                // Assign the whole batch first, then move the centroids.
+                for (int i = 0; i < n; i++) {
+                    assigned[i] = findNearest(batch, i * 3, centroids);
+                }
+                for (int i = 0; i < n; i++) {
+                    int c = assigned[i];
+                    if (c >= 0) {
+                        counts[c]++;
+                        float rate = 1.0f / counts[c];
+                        for (int k = 0; k < 3; k++) {
+                            centroids[c * 3 + k] += (batch[i * 3 + k] - centroids[c * 3 + k]) * rate;
+                        }
+                    }
+                }
+            }
+        });
+
+        Color[] out = Arrays.copyOf(base, base.length);
+        for (int k = 0; k < colors; k++) {
+            out[k] = new Color(context.getColorspace().toRGB(centroids, k * 3) | 0xFF000000);
+        }
+        return out;
+    }
+
+    /**
+     * @return The nearest generated colour, or -1 if a fixed palette entry
+     * is at least as near.
+     */
+    private int findNearest(float[] points, int offset, float[] centroids) {
+        double bestError = Double.MAX_VALUE;
+        for (int i = 0; i < fixedColors.length; i += 3) {
+            bestError = Math.min(bestError, Utils.getColorDistanceSq(points, offset, fixedColors, i));
+        }
+
+        int best = -1;
+        for (int i = 0; i < colors; i++) {
+            double err = Utils.getColorDistanceSq(points, offset, centroids, i * 3);
+            if (err < bestError) {
+                bestError = err;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static void forEachStrip(TileSource source, StripConsumer consumer) throws IOException {
+        int width = source.getWidth();
+        int stripHeight = source.getStripHeight(MAX_STRIP_PIXELS);
+        int[] rgb = new int[width * stripHeight];
+        for (int y = 0; y < source.getHeight(); y += stripHeight) {
+            int height = Math.min(stripHeight, source.getHeight() - y);
+            source.readTile(0, y, width, height, rgb);
+            consumer.accept(rgb, width * height);
+        }
+    }
+}
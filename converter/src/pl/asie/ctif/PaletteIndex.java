@@ -0,0 +1,156 @@
+package pl.asie.ctif;
+
+/**
+ * A k-d tree over palette colours, in the coordinates of the active
+ * colourspace, answering exact nearest and k-nearest colour queries.
+ *
+ * The tree is stored implicitly: the node of the index range [lo, hi) sits
+ * at its middle, with its two subtrees on either side. Equally distant
+ * colours are ordered by palette index, so that the nearest colour is the
+ * same one a linear scan would pick. The index is immutable, so queries
+ * may run on any number of threads at once.
+ */
+final class PaletteIndex {
+	private final float[] nodes;
+	private final int[] indices;
+	private final byte[] axes;
+	private final int size;
+
+	/**
+	 * Indexes palette entries from (inclusive) to to (exclusive), given as
+	 * consecutive colourspace triplets in palette.
+	 */
+	PaletteIndex(float[] palette, int from, int to) {
+		this.size = Math.max(0, to - from);
+		this.nodes = new float[size * 3];
+		this.indices = new int[size];
+		this.axes = new byte[size];
+
+		for (int i = 0; i < size; i++) {
+			indices[i] = from + i;
+		}
+		build(palette, 0, size);
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(palette, indices[i] * 3, nodes, i * 3, 3);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void build(float[] palette, int lo, int hi) {
+		if (hi - lo <= 1) {
+			return;
+		}
+
+		// Split along the axis with the largest extent.
+		int axis = 0;
+		float bestExtent = -1;
+		for (int k = 0; k < 3; k++) {
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for (int i = lo; i < hi; i++) {
+				float v = palette[indices[i] * 3 + k];
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (max - min > bestExtent) {
+				bestExtent = max - min;
+				axis = k;
+			}
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(palette, lo, hi - 1, mid, axis);
+		axes[mid] = (byte) axis;
+		build(palette, lo, mid);
+		build(palette, mid + 1, hi);
+	}
+
+	/**
+	 * Reorders indices[lo..hi] so that the entry at position n is the one
+	 * that would be there if the range was sorted along axis.
+	 */
+	private void select(float[] palette, int lo, int hi, int n, int axis) {
+		while (lo < hi) {
+			float pivot = palette[indices[(lo + hi) >>> 1] * 3 + axis];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (palette[indices[i] * 3 + axis] < pivot) i++;
+				while (palette[indices[j] * 3 + axis] > pivot) j--;
+				if (i <= j) {
+					int t = indices[i];
+					indices[i++] = indices[j];
+					indices[j--] = t;
+				}
+			}
+			if (n <= j) {
+				hi = j;
+			} else if (n >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The palette index of the colour nearest to the point at
+	 * point[offset..offset+2], or -1 if the index is empty.
+	 */
+	public int findNearest(float[] point, int offset) {
+		int[] result = new int[1];
+		return findNearest(point, offset, 1, result, new double[1]) > 0 ? result[0] : -1;
+	}
+
+	/**
+	 * Finds the k palette colours nearest to the point at
+	 * point[offset..offset+2], nearest first.
+	 *
+	 * @param result Receives the palette indices; must hold at least k entries.
+	 * @param distances Receives the squared distances; must hold at least k entries.
+	 * @return The number of colours found, min(k, size()).
+	 */
+	public int findNearest(float[] point, int offset, int k, int[] result, double[] distances) {
+		return search(0, size, point, offset, Math.min(k, size), result, distances, 0);
+	}
+
+	private int search(int lo, int hi, float[] point, int offset, int k, int[] result, double[] distances, int count) {
+		if (lo >= hi || k == 0) {
+			return count;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		double dist = Utils.getColorDistanceSq(point, offset, nodes, mid * 3);
+		int index = indices[mid];
+		if (count < k || dist < distances[k - 1] || (dist == distances[k - 1] && index < result[k - 1])) {
+			// Insertion into the sorted result; k is small.
+			int pos = count < k ? count++ : k - 1;
+			while (pos > 0 && (distances[pos - 1] > dist || (distances[pos - 1] == dist && result[pos - 1] > index))) {
+				distances[pos] = distances[pos - 1];
+				result[pos] = result[pos - 1];
+				pos--;
+			}
+			distances[pos] = dist;
+			result[pos] = index;
+		}
+
+		// In float, like the distances, so that the pruning below never
+		// skips a colour that rounds to the same distance as the k-th.
+		float diff = point[offset + axes[mid]] - nodes[mid * 3 + axes[mid]];
+		if (diff < 0) {
+			count = search(lo, mid, point, offset, k, result, distances, count);
+			if (count < k || diff * diff <= distances[k - 1]) {
+				count = search(mid + 1, hi, point, offset, k, result, distances, count);
+			}
+		} else {
+			count = search(mid + 1, hi, point, offset, k, result, distances, count);
+			if (count < k || diff * diff <= distances[k - 1]) {
+				count = search(lo, mid, point, offset, k, result, distances, count);
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,149 @@
+package pl.asie.ctif;
+
+import pl.asie.ctif.colorspace.Colorspace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A table of the nearest fixed palette colours of every RGB colour,
+ * quantised to BITS bits per channel. It only depends on the fixed palette
+ * entries and the colourspace, so it can be built once, saved, and memory
+ * mapped by later runs instead of searching the palette for every pixel.
+ *
+ * Entries hold palette indices, nearest first, as unsigned bytes.
+ */
+public final class PaletteLookupTable {
+	private static final int FILE_MAGIC = 0x4354504C; // CTPL
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int BITS = 5;
+	private static final int ENTRIES = 1 << (BITS * 3);
+
+	private final long fingerprint;
+	private final int neighbours;
+	private final ByteBuffer table;
+
+	private PaletteLookupTable(long fingerprint, int neighbours, ByteBuffer table) {
+		this.fingerprint = fingerprint;
+		this.neighbours = neighbours;
+		this.table = table;
+	}
+
+	/**
+	 * Builds a table of the given amount of nearest colours in index.
+	 */
+	static PaletteLookupTable build(PaletteIndex index, Colorspace colorspace, int neighbours, long fingerprint) {
+		neighbours = Math.min(neighbours, index.size());
+		ByteBuffer table = ByteBuffer.allocate(ENTRIES * neighbours);
+		int[] result = new int[neighbours];
+		double[] distances = new double[neighbours];
+		float[] color = new float[3];
+		int half = 1 << (7 - BITS);
+
+		for (int i = 0; i < ENTRIES; i++) {
+			// The centre of the quantisation step.
+			int r = ((i >> (BITS * 2)) << (8 - BITS)) + half;
+			int g = (((i >> BITS) & ((1 << BITS) - 1)) << (8 - BITS)) + half;
+			int b = ((i & ((1 << BITS) - 1)) << (8 - BITS)) + half;
+			colorspace.fromRGB((r << 16) | (g << 8) | b, color, 0);
+			index.findNearest(color, 0, neighbours, result, distances);
+			for (int j = 0; j < neighbours; j++) {
+				table.put(i * neighbours + j, (byte) result[j]);
+			}
+		}
+		return new PaletteLookupTable(fingerprint, neighbours, table);
+	}
+
+	/**
+	 * @return A fingerprint of palette entries from (inclusive) to to
+	 * (exclusive), given in the coordinates of colourspace. A few probe
+	 * colours are included, so that the colourspace itself is covered.
+	 */
+	static long fingerprint(float[] palette, int from, int to, Colorspace colorspace) {
+		long hash = 0xCBF29CE484222325L;
+		long prime = 0x100000001B3L;
+
+		hash = (hash ^ BITS) * prime;
+		hash = (hash ^ (to - from)) * prime;
+		for (int i = from * 3; i < to * 3; i++) {
+			hash = (hash ^ Float.floatToRawIntBits(palette[i])) * prime;
+		}
+		for (int probe : new int[] { 0xFF0000, 0x00FF00, 0x0000FF, 0x808080 }) {
+			for (float f : colorspace.fromRGB(probe)) {
+				hash = (hash ^ Float.floatToRawIntBits(f)) * prime;
+			}
+		}
+		return hash;
+	}
+
+	long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return How many nearest colours each entry holds.
+	 */
+	public int getNeighbours() {
+		return neighbours;
+	}
+
+	/**
+	 * @return The palette index of the n-th nearest colour to an RGB colour,
+	 * n counting from 0.
+	 */
+	public int getNeighbour(int rgb, int n) {
+		int i = (((rgb >> (16 + 8 - BITS)) & ((1 << BITS) - 1)) << (BITS * 2))
+				| (((rgb >> (8 + 8 - BITS)) & ((1 << BITS) - 1)) << BITS)
+				| ((rgb >> (8 - BITS)) & ((1 << BITS) - 1));
+		return table.get(i * neighbours + n) & 0xFF;
+	}
+
+	/**
+	 * Memory-maps a table saved by save().
+	 */
+	public static PaletteLookupTable load(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != FILE_MAGIC) {
+				throw new IOException("Not a palette lookup table file: " + file);
+			}
+			int version = buffer.getInt(4);
+			if (version != FILE_VERSION) {
+				throw new IOException("Unsupported palette lookup table version: " + version);
+			}
+			if (buffer.getInt(8) != BITS) {
+				throw new IOException("Unsupported palette lookup table precision: " + buffer.getInt(8));
+			}
+
+			int neighbours = buffer.getInt(12);
+			long fingerprint = buffer.getLong(16);
+			if (neighbours <= 0 || buffer.remaining() != HEADER_SIZE + (long) ENTRIES * neighbours) {
+				throw new IOException("Truncated palette lookup table: " + file);
+			}
+
+			buffer.position(HEADER_SIZE);
+			return new PaletteLookupTable(fingerprint, neighbours, buffer.slice());
+		}
+	}
+
+	public void save(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(BITS).putInt(neighbours).putLong(fingerprint);
+		header.flip();
+
+		ByteBuffer contents = table.duplicate();
+		contents.clear();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (contents.hasRemaining()) {
+				channel.write(contents);
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package pl.asie.ctif;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The palette lookup tables of every conversion sharing one --palette-lut
+ * file, one per fixed palette and colourspace in use, so only a few. The
+ * file is loaded on first use and keeps the first table that has to be
+ * built; tables for other palettes or colourspaces are only kept in memory,
+ * so that conversions with different settings do not take turns rebuilding
+ * and overwriting it.
+ */
+final class PaletteLookupTables {
+	private final File file;
+	private final List<PaletteLookupTable> tables = new ArrayList<>();
+	private boolean fileRead, fileUsed;
+
+	PaletteLookupTables(String fileName) {
+		this.file = new File(fileName);
+	}
+
+	/**
+	 * Gives the converter a table made for its palette and colourspace,
+	 * loading or building it if there is none yet.
+	 */
+	synchronized void apply(Converter converter) {
+		for (PaletteLookupTable table : tables) {
+			if (converter.setPaletteLookupTable(table)) {
+				return;
+			}
+		}
+
+		if (!fileRead) {
+			fileRead = true;
+			if (file.exists()) {
+				try {
+					PaletteLookupTable table = PaletteLookupTable.load(file);
+					tables.add(table);
+					if (converter.setPaletteLookupTable(table)) {
+						fileUsed = true;
+						return;
+					}
+				} catch (IOException e) {
+					System.err.println("Could not load palette lookup table, rebuilding: " + e.getMessage());
+				}
+			}
+		}
+
+		PaletteLookupTable table = converter.createPaletteLookupTable();
+		if (table == null) {
+			// This platform's palette is searched in full.
+			return;
+		}
+		tables.add(table);
+		converter.setPaletteLookupTable(table);
+		if (!fileUsed) {
+			fileUsed = true;
+			try {
+				table.save(file);
+			} catch (IOException e) {
+				System.err.println("Could not save palette lookup table: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package pl.asie.ctif;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A separable image resampler working in linear light, like ImageMagick's
+ * "-colorspace RGB -filter ... -resize ... -colorspace sRGB". The image is
+ * resized horizontally, then vertically, with rows split between threads;
+ * the result does not depend on the amount of threads.
+ */
+public final class Resampler {
+	private interface RowAction {
+		/**
+		 * @param buffer Scratch space, shared by the rows of one task.
+		 */
+		void accept(int y, float[] buffer);
+	}
+
+	public enum Filter {
+		LANCZOS(3) {
+			@Override
+			double weight(double x) {
+				if (x == 0) {
+					return 1;
+				}
+				double px = Math.PI * x;
+				return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+			}
+		},
+		MITCHELL(2) {
+			@Override
+			double weight(double x) {
+				// Mitchell-Netravali, B = C = 1/3.
+				final double b = 1.0 / 3, c = 1.0 / 3;
+				x = Math.abs(x);
+				if (x < 1) {
+					return ((12 - 9 * b - 6 * c) * x * x * x + (-18 + 12 * b + 6 * c) * x * x + (6 - 2 * b)) / 6;
+				} else {
+					return ((-b - 6 * c) * x * x * x + (6 * b + 30 * c) * x * x + (-12 * b - 48 * c) * x + (8 * b + 24 * c)) / 6;
+				}
+			}
+		};
+
+		private final int support;
+
+		Filter(int support) {
+			this.support = support;
+		}
+
+		/**
+		 * @return The filter weight at distance x, for |x| < support.
+		 */
+		abstract double weight(double x);
+	}
+
+	// Fine enough that neighbouring dark sRGB values stay apart.
+	private static final int LINEAR_STEPS = 1 << 14;
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+	private static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_STEPS + 1];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			double v = i / 255.0;
+			SRGB_TO_LINEAR[i] = (float) (v <= 0.04045 ? v / 12.92 : StrictMath.pow((v + 0.055) / 1.055, 2.4));
+		}
+		for (int i = 0; i <= LINEAR_STEPS; i++) {
+			double v = (double) i / LINEAR_STEPS;
+			v = v <= 0.0031308 ? v * 12.92 : 1.055 * StrictMath.pow(v, 1 / 2.4) - 0.055;
+			LINEAR_TO_SRGB[i] = (byte) Math.round(v * 255);
+		}
+	}
+
+	/**
+	 * The source pixels contributing to each destination pixel along one
+	 * axis: destination pixel i takes weights[i][j] of source pixel
+	 * start[i] + j.
+	 */
+	private static final class Contributions {
+		final int[] start;
+		final float[][] weights;
+
+		Contributions(int srcSize, int dstSize, Filter filter) {
+			double scale = (double) srcSize / dstSize;
+			// When shrinking, stretch the filter over the source pixels.
+			double stretch = Math.max(1, scale);
+			double support = filter.support * stretch;
+
+			start = new int[dstSize];
+			weights = new float[dstSize][];
+			for (int i = 0; i < dstSize; i++) {
+				double center = (i + 0.5) * scale - 0.5;
+				int from = (int) Math.ceil(center - support);
+				int to = (int) Math.floor(center + support);
+				double[] w = new double[to - from + 1];
+				double sum = 0;
+				for (int j = from; j <= to; j++) {
+					double x = (j - center) / stretch;
+					w[j - from] = Math.abs(x) < filter.support ? filter.weight(x) : 0;
+					sum += w[j - from];
+				}
+
+				// Pixels past the edges repeat the edge pixel, so fold their
+				// weights onto it.
+				int first = Math.max(0, from);
+				int last = Math.min(srcSize - 1, to);
+				float[] folded = new float[last - first + 1];
+				for (int j = from; j <= to; j++) {
+					int k = Math.min(Math.max(j, first), last);
+					folded[k - first] += (float) (w[j - from] / sum);
+				}
+				start[i] = first;
+				weights[i] = folded;
+			}
+		}
+	}
+
+	private Resampler() {
+
+	}
+
+	/**
+	 * Resizes on the common pool, or on the calling thread only if threads
+	 * is 1.
+	 */
+	public static BufferedImage resize(BufferedImage image, int width, int height, Filter filter, int threads) {
+		return resize(image, width, height, filter, threads > 1 ? ForkJoinPool.commonPool() : null);
+	}
+
+	/**
+	 * @param pool The pool to split the rows over, or null to resize on the
+	 *             calling thread.
+	 */
+	static BufferedImage resize(BufferedImage image, int width, int height, Filter filter, ForkJoinPool pool) {
+		int srcWidth = image.getWidth();
+		int srcHeight = image.getHeight();
+		int[] rgb = Utils.getRGB(image);
+		Contributions horizontal = new Contributions(srcWidth, width, filter);
+		Contributions vertical = new Contributions(srcHeight, height, filter);
+
+		// Each pass writes its own rows only, so rows can be split freely.
+		BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		float[] rows = new float[srcHeight * width * 3];
+		int[] output = ((DataBufferInt) resizedImage.getRaster().getDataBuffer()).getData();
+		forEachRow(pool, srcHeight, srcWidth * 3, (y, linear) -> resizeRow(rgb, y * srcWidth, srcWidth, rows, y * width * 3, width, horizontal, linear));
+		forEachRow(pool, height, width * 3, (y, sum) -> resizeColumns(rows, width, output, y, vertical, sum));
+
+		return resizedImage;
+	}
+
+	private static void resizeRow(int[] rgb, int srcOffset, int srcWidth, float[] dest, int destOffset, int width, Contributions contributions, float[] linear) {
+		for (int x = 0; x < srcWidth; x++) {
+			int c = rgb[srcOffset + x];
+			linear[x * 3] = SRGB_TO_LINEAR[(c >> 16) & 0xFF];
+			linear[x * 3 + 1] = SRGB_TO_LINEAR[(c >> 8) & 0xFF];
+			linear[x * 3 + 2] = SRGB_TO_LINEAR[c & 0xFF];
+		}
+
+		for (int x = 0; x < width; x++) {
+			float[] weights = contributions.weights[x];
+			int offset = contributions.start[x] * 3;
+			float r = 0, g = 0, b = 0;
+			for (int j = 0; j < weights.length; j++) {
+				float w = weights[j];
+				r += linear[offset] * w;
+				g += linear[offset + 1] * w;
+				b += linear[offset + 2] * w;
+				offset += 3;
+			}
+			dest[destOffset + x * 3] = r;
+			dest[destOffset + x * 3 + 1] = g;
+			dest[destOffset + x * 3 + 2] = b;
+		}
+	}
+
+	private static void resizeColumns(float[] rows, int width, int[] output, int y, Contributions contributions, float[] sum) {
+		float[] weights = contributions.weights[y];
+		int rowLength = width * 3;
+		int offset = contributions.start[y] * rowLength;
+		Arrays.fill(sum, 0);
+		for (int j = 0; j < weights.length; j++) {
+			float w = weights[j];
+			for (int i = 0; i < rowLength; i++) {
+				sum[i] += rows[offset + i] * w;
+			}
+			offset += rowLength;
+		}
+
+		for (int x = 0; x < width; x++) {
+			output[y * width + x] = (toSRGB(sum[x * 3]) << 16) | (toSRGB(sum[x * 3 + 1]) << 8) | toSRGB(sum[x * 3 + 2]);
+		}
+	}
+
+	private static int toSRGB(float linear) {
+		if (linear <= 0) {
+			return 0;
+		} else if (linear >= 1) {
+			return 255;
+		}
+		return LINEAR_TO_SRGB[(int) (linear * LINEAR_STEPS + 0.5f)] & 0xFF;
+	}
+
+	private static void forEachRow(ForkJoinPool pool, int height, int bufferLength, RowAction action) {
+		if (pool == null) {
+			float[] buffer = new float[bufferLength];
+			for (int y = 0; y < height; y++) {
+				action.accept(y, buffer);
+			}
+		} else {
+			pool.invoke(new RowTask(0, height, bufferLength, action));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class RowTask extends RecursiveAction {
+		private static final int GRAIN = 16;
+		private final int minY, maxY, bufferLength;
+		private final RowAction action;
+
+		RowTask(int minY, int maxY, int bufferLength, RowAction action) {
+			this.minY = minY;
+			this.maxY = maxY;
+			this.bufferLength = bufferLength;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+			if (maxY - minY <= GRAIN) {
+				float[] buffer = new float[bufferLength];
+				for (int y = minY; y < maxY; y++) {
+					action.accept(y, buffer);
+				}
+			} else {
+				int midY = (minY + maxY) >>> 1;
+				invokeAll(new RowTask(minY, midY, bufferLength, action), new RowTask(midY, maxY, bufferLength, action));
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package pl.asie.ctif;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Gives access to an image one rectangular region at a time, so that
+ * images larger than the heap can be processed.
+ */
+public interface TileSource extends Closeable {
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * Reads the ARGB pixels of a region, row by row, into dest.
+	 */
+	void readTile(int x, int y, int width, int height, int[] dest) throws IOException;
+
+	/**
+	 * @return The height of the full-width strips this source is best read
+	 * in, keeping at most about maxPixels pixels in memory at once.
+	 */
+	default int getStripHeight(int maxPixels) {
+		return Math.max(1, Math.min(getHeight(), maxPixels / getWidth()));
+	}
+
+	@Override
+	default void close() throws IOException {
+	}
+
+	static TileSource of(BufferedImage image) {
+		return new TileSource() {
+			@Override
+			public int getWidth() {
+				return image.getWidth();
+			}
+
+			@Override
+			public int getHeight() {
+				return image.getHeight();
+			}
+
+			@Override
+			public void readTile(int x, int y, int width, int height, int[] dest) {
+				image.getRGB(x, y, width, height, dest, 0, width);
+			}
+		};
+	}
+
+	/**
+	 * Opens an image file for reading in regions, without decoding all of it
+	 * at once. Formats without random access, like PNG and JPEG, have to
+	 * decode from the start of the image for every region, so reading them
+	 * in strips would take time quadratic in their height. They are instead
+	 * subsampled, if needed, to at most maxPixels pixels, which can be read
+	 * as one strip; the source then has the subsampled size.
+	 *
+	 * @return The source, or null if no ImageIO reader supports the file.
+	 */
+	static TileSource open(File file, int maxPixels) throws IOException {
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null) {
+			return null;
+		}
+
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			stream.close();
+			return null;
+		}
+
+		ImageReader reader = readers.next();
+		reader.setInput(stream, false, true);
+		int fullWidth = reader.getWidth(0);
+		int fullHeight = reader.getHeight(0);
+		int step = 1;
+		if (!reader.isRandomAccessEasy(0)) {
+			while ((long) ((fullWidth + step - 1) / step) * ((fullHeight + step - 1) / step) > maxPixels) {
+				step++;
+			}
+		}
+		int subsampling = step;
+		int width = (fullWidth + step - 1) / step;
+		int height = (fullHeight + step - 1) / step;
+
+		return new TileSource() {
+			@Override
+			public int getWidth() {
+				return width;
+			}
+
+			@Override
+			public int getHeight() {
+				return height;
+			}
+
+			@Override
+			public void readTile(int x, int y, int w, int h, int[] dest) throws IOException {
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(x * subsampling, y * subsampling,
+						Math.min(w * subsampling, fullWidth - x * subsampling), Math.min(h * subsampling, fullHeight - y * subsampling)));
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				BufferedImage tile = reader.read(0, param);
+				tile.getRGB(0, 0, w, h, dest, 0, w);
+			}
+
+			@Override
+			public void close() throws IOException {
+				reader.dispose();
+				stream.close();
+			}
+		};
+	}
+}
@@ -2,26 +2,58 @@ package pl.asie.ctif;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import org.im4java.core.ConvertCmd;
 import org.im4java.core.IMOperation;
-import org.im4java.core.Stream2BufferedImage;
 import org.im4java.process.OutputConsumer;
 import pl.asie.ctif.colorspace.Colorspace;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 public final class Utils {
 	private static int imMode = -1;
+	// A ConvertCmd holds on to its input provider and output consumer, so
+	// every thread keeps one of its own.
+	private static final ThreadLocal<ConvertCmd> convertCmd = new ThreadLocal<>();
 
     private Utils() {
 
     }
 
-    private static ConvertCmd createConvertCmd() {
+	private static ConvertCmd getConvertCmd() {
+		ConvertCmd cmd = convertCmd.get();
+		if (cmd == null) {
+			cmd = createConvertCmd();
+			convertCmd.set(cmd);
+		}
+		return cmd;
+	}
+
+	/**
+	 * @return Whether resize() uses ImageMagick rather than the built-in
+	 * resampler.
+	 */
+	static boolean hasImageMagick() {
+		return getConvertCmd() != null;
+	}
+
+    private static synchronized ConvertCmd createConvertCmd() {
     	if (imMode < 0) {
 			ConvertCmd cmd = new ConvertCmd();
 			imMode = 1;
@@ -36,7 +68,7 @@ public final class Utils {
 				cmd.run(new IMOperation());
 			} catch (Exception e) {
 				if (e.getCause() instanceof IOException) {
-					System.err.println("Warning: ImageMagick not found! Please install ImageMagick for improved scaling quality.");
+					System.err.println("ImageMagick not found; using the built-in Lanczos resampler for resizing.");
 					imMode = 0;
 				}
 			}
@@ -58,8 +90,28 @@ public final class Utils {
 	}
 
 	public static BufferedImage resize(BufferedImage image, int width, int height, boolean forceNoImagemagick) {
-		ConvertCmd cmd = forceNoImagemagick ? null : createConvertCmd();
-		if (cmd == null) {
+		return resize(image, width, height, forceNoImagemagick, 1);
+	}
+
+	/**
+	 * Resizes with ImageMagick's Lanczos filter in linear light. Without
+	 * ImageMagick, the built-in Resampler does the same, on the common pool
+	 * if threads is more than 1; forceNoImagemagick uses Java2D's bicubic
+	 * scaling.
+	 */
+	public static BufferedImage resize(BufferedImage image, int width, int height, boolean forceNoImagemagick, int threads) {
+		return resize(image, width, height, forceNoImagemagick, threads > 1 ? ForkJoinPool.commonPool() : null);
+	}
+
+	/**
+	 * As above, with the built-in Resampler splitting rows over the given
+	 * pool, or running on the calling thread if it is null.
+	 */
+	static BufferedImage resize(BufferedImage image, int width, int height, boolean forceNoImagemagick, ForkJoinPool pool) {
+		ConvertCmd cmd = forceNoImagemagick ? null : getConvertCmd();
+		if (cmd == null && !forceNoImagemagick) {
+			return Resampler.resize(image, width, height, Resampler.Filter.LANCZOS, pool);
+		} else if (cmd == null) {
 			BufferedImage resizedImage = new BufferedImage(width, height, image.getType());
 			Graphics2D g = resizedImage.createGraphics();
 			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
@@ -67,22 +119,57 @@ public final class Utils {
 			g.dispose();
 			return resizedImage;
 		}
+
+		// Raw 8-bit RGB goes both ways through the pipes, so no image file
+		// has to be encoded or decoded.
 		IMOperation op = new IMOperation();
-		op.addImage();
+		op.size(image.getWidth(), image.getHeight());
+		op.depth(8);
+		op.addImage("rgb:-");
 		op.colorspace("RGB");
 		op.filter("LanczosRadius");
 		op.resize(width, height, '!');
 		op.colorspace("sRGB");
-		op.addImage("png:-");
+		op.depth(8);
+		op.addImage("rgb:-");
 
-		Stream2BufferedImage s2b = new Stream2BufferedImage();
-		cmd.setOutputConsumer(s2b);
+		BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) resizedImage.getRaster().getDataBuffer()).getData();
+		cmd.setInputProvider(stream -> writeRawRGB(image, stream));
+		cmd.setOutputConsumer(stream -> readRawRGB(stream, pixels, width));
 		try {
-			cmd.run(op, image);
+			cmd.run(op);
 		} catch (Exception e) {
 			e.printStackTrace();
+			return Resampler.resize(image, width, height, Resampler.Filter.LANCZOS, pool);
+		}
+		return resizedImage;
+	}
+
+	private static void writeRawRGB(BufferedImage image, OutputStream stream) throws IOException {
+		int width = image.getWidth();
+		int[] row = new int[width];
+		byte[] data = new byte[width * 3];
+		for (int y = 0; y < image.getHeight(); y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				data[x * 3] = (byte) (row[x] >> 16);
+				data[x * 3 + 1] = (byte) (row[x] >> 8);
+				data[x * 3 + 2] = (byte) row[x];
+			}
+			stream.write(data);
+		}
+	}
+
+	private static void readRawRGB(InputStream stream, int[] pixels, int width) throws IOException {
+		DataInputStream input = new DataInputStream(stream);
+		byte[] data = new byte[width * 3];
+		for (int offset = 0; offset < pixels.length; offset += width) {
+			input.readFully(data);
+			for (int x = 0; x < width; x++) {
+				pixels[offset + x] = ((data[x * 3] & 0xFF) << 16) | ((data[x * 3 + 1] & 0xFF) << 8) | (data[x * 3 + 2] & 0xFF);
+			}
 		}
-		return s2b.getImage();
 	}
 
 	public static BufferedImage resizeBox(BufferedImage image, int width, int height) {
@@ -115,8 +202,147 @@ public final class Utils {
 		}
 	}
 
+	/**
+	 * @return The size of an image file, read from its header without
+	 * decoding it, or null if it cannot be read that way.
+	 */
+	public static Dimension getImageSize(String location) {
+		if (location.equals("-")) {
+			return null;
+		}
+		try (ImageInputStream stream = ImageIO.createImageInputStream(new File(location))) {
+			ImageReader reader = getImageReader(stream);
+			if (reader == null) {
+				return null;
+			}
+			try {
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Loads an image, decoding only every n-th pixel of every n-th row,
+	 * with n as large as possible while the image stays at least
+	 * minWidth x minHeight. Large images then never have to be held in
+	 * memory at full resolution.
+	 */
+	public static BufferedImage loadImage(String location, int minWidth, int minHeight) {
+		if (location.equals("-")) {
+			return loadImage(location);
+		}
+		try (ImageInputStream stream = ImageIO.createImageInputStream(new File(location))) {
+			ImageReader reader = getImageReader(stream);
+			if (reader == null) {
+				return null;
+			}
+			try {
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = Math.min(reader.getWidth(0) / Math.max(1, minWidth), reader.getHeight(0) / Math.max(1, minHeight));
+				if (step > 1) {
+					// Take the pixel in the middle of each step, not its corner.
+					param.setSourceSubsampling(step, step, step / 2, step / 2);
+				}
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static ImageReader getImageReader(ImageInputStream stream) {
+		if (stream == null) {
+			return null;
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			return null;
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(stream, true, true);
+		return reader;
+	}
+
+	/**
+	 * @return The ARGB pixels of the image, row by row. The common image
+	 * types are read straight from their rasters instead of converting every
+	 * pixel through their ColorModel; the result is the same.
+	 */
     public static int[] getRGB(BufferedImage image) {
-        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		int width = image.getWidth();
+		int height = image.getHeight();
+		WritableRaster raster = image.getRaster();
+		if (isPlainRaster(raster)) {
+			int[] rgb = new int[width * height];
+			switch (image.getType()) {
+				case BufferedImage.TYPE_INT_RGB: {
+					int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+					for (int i = 0; i < rgb.length; i++) {
+						rgb[i] = data[i] | 0xFF000000;
+					}
+					return rgb;
+				}
+				case BufferedImage.TYPE_INT_ARGB: {
+					int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+					System.arraycopy(data, 0, rgb, 0, rgb.length);
+					return rgb;
+				}
+				case BufferedImage.TYPE_3BYTE_BGR: {
+					byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+					for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+						rgb[i] = 0xFF000000 | ((data[j + 2] & 0xFF) << 16) | ((data[j + 1] & 0xFF) << 8) | (data[j] & 0xFF);
+					}
+					return rgb;
+				}
+			}
+		}
+        return image.getRGB(0, 0, width, height, null, 0, width);
+	}
+
+	/**
+	 * @return The image as TYPE_INT_RGB, whose pixels can be read and
+	 * written directly; the image itself if it already is one. Any alpha
+	 * channel is dropped.
+	 */
+	public static BufferedImage toIntRGB(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB && isPlainRaster(image.getRaster())) {
+			return image;
+		}
+		int[] rgb = getRGB(image);
+		BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < rgb.length; i++) {
+			data[i] = rgb[i] & 0xFFFFFF;
+		}
+		return result;
+	}
+
+	/**
+	 * @return Whether the raster holds its own pixels only, row after row
+	 * without gaps, like those of images made with the BufferedImage
+	 * constructor. Subimages do not.
+	 */
+	private static boolean isPlainRaster(WritableRaster raster) {
+		if (raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+				|| raster.getDataBuffer().getNumBanks() != 1 || raster.getDataBuffer().getOffset() != 0) {
+			return false;
+		}
+		SampleModel model = raster.getSampleModel();
+		if (model instanceof SinglePixelPackedSampleModel) {
+			return ((SinglePixelPackedSampleModel) model).getScanlineStride() == raster.getWidth();
+		} else if (model instanceof ComponentSampleModel) {
+			ComponentSampleModel componentModel = (ComponentSampleModel) model;
+			return componentModel.getScanlineStride() == raster.getWidth() * componentModel.getPixelStride();
+		} else {
+			return false;
+		}
 	}
 
 	public static void addQuantError(float[] target, float[] expected, float[] received, float mul) {
@@ -127,6 +353,14 @@ public final class Utils {
 		}
 	}
 
+	public static void addQuantError(float[] target, int targetOffset, float[] expected, int expectedOffset, float[] received, int receivedOffset, float mul) {
+		if (mul != 0.0f) {
+			for (int i = 0; i < 3; i++) {
+				target[targetOffset + i] += (expected[expectedOffset + i] - received[receivedOffset + i]) * mul;
+			}
+		}
+	}
+
     public static double getColorDistance(int c1, int c2, Colorspace colorspace) {
 		return Math.sqrt(getColorDistanceSq(c1, c2, colorspace));
     }
@@ -140,4 +374,40 @@ public final class Utils {
 				(f1[1] - f2[1]) * (f1[1] - f2[1]) +
 				(f1[2] - f2[2]) * (f1[2] - f2[2]);
 	}
+
+	public static double getColorDistanceSq(float[] f1, int o1, float[] f2, int o2) {
+		return (f1[o1] - f2[o2]) * (f1[o1] - f2[o2]) +
+				(f1[o1 + 1] - f2[o2 + 1]) * (f1[o1 + 1] - f2[o2 + 1]) +
+				(f1[o1 + 2] - f2[o2 + 2]) * (f1[o1 + 2] - f2[o2 + 2]);
+	}
+
+	/**
+	 * @return The mean squared distance between each pixel of the image and
+	 * its nearest palette colour, in the given colourspace.
+	 */
+	public static double getMeanPaletteError(Color[] palette, BufferedImage image, Colorspace colorspace) {
+		int[] paletteRGB = new int[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			paletteRGB[i] = palette[i].getRGB();
+		}
+		float[] pal = new float[palette.length * 3];
+		colorspace.fromRGB(paletteRGB, 0, pal, 0, palette.length);
+
+		int[] rgb = getRGB(image);
+		float[] pixels = new float[rgb.length * 3];
+		colorspace.fromRGB(rgb, 0, pixels, 0, rgb.length);
+
+		double error = 0;
+		for (int i = 0; i < rgb.length; i++) {
+			double best = Double.MAX_VALUE;
+			for (int j = 0; j < palette.length; j++) {
+				double dist = getColorDistanceSq(pixels, i * 3, pal, j * 3);
+				if (dist < best) {
+					best = dist;
+				}
+			}
+			error += best;
+		}
+		return rgb.length > 0 ? error / rgb.length : 0;
+	}
 }
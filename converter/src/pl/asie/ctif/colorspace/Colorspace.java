@@ -26,30 +26,114 @@ public abstract class Colorspace {
                 return value;
             }
 
+            @Override
+            public void fromRGB(float[] value, int offset, float[] dest, int destOffset) {
+                if (value != dest || offset != destOffset) {
+                    System.arraycopy(value, offset, dest, destOffset, 3);
+                }
+            }
+
+            @Override
+            public void fromRGB(int[] values, int offset, float[] dest, int destOffset, int length) {
+                for (int i = 0; i < length; i++) {
+                    int value = values[offset + i];
+                    int j = destOffset + i * 3;
+                    dest[j] = (float) ((value >> 16) & 0xFF) / 255.0f;
+                    dest[j + 1] = (float) ((value >> 8) & 0xFF) / 255.0f;
+                    dest[j + 2] = (float) (value & 0xFF) / 255.0f;
+                }
+            }
+
             @Override
             public float[] toRGBArray(float[] value) {
                 return value;
             }
+
+            @Override
+            public void toRGBArray(float[] value, int offset, float[] dest, int destOffset) {
+                if (value != dest || offset != destOffset) {
+                    System.arraycopy(value, offset, dest, destOffset, 3);
+                }
+            }
+
+            @Override
+            public int toRGB(float[] value, int offset) {
+                return packRGB(value[offset], value[offset + 1], value[offset + 2]);
+            }
         };
     }
 
+    protected static int packRGB(float r, float g, float b) {
+        if (r < 0) r = 0; else if (r > 1) r = 1;
+        if (g < 0) g = 0; else if (g > 1) g = 1;
+        if (b < 0) b = 0; else if (b > 1) b = 1;
+        return (Math.round(r * 255.0f) << 16) | (Math.round(g * 255.0f) << 8) | Math.round(b * 255.0f);
+    }
+
     public int toRGB(float[] value) {
-        float[] rgb = toRGBArray(value);
-        if (rgb[0] < 0) rgb[0] = 0; else if (rgb[0] > 1) rgb[0] = 1;
-        if (rgb[1] < 0) rgb[1] = 0; else if (rgb[1] > 1) rgb[1] = 1;
-        if (rgb[2] < 0) rgb[2] = 0; else if (rgb[2] > 1) rgb[2] = 1;
-        return (Math.round(rgb[0] * 255.0f) << 16) | (Math.round(rgb[1] * 255.0f) << 8) | Math.round(rgb[2] * 255.0f);
+        return toRGB(value, 0);
+    }
+
+    /**
+     * Converts the three components at value[offset] back to a clamped
+     * RGB value.
+     */
+    public int toRGB(float[] value, int offset) {
+        float[] rgb = new float[3];
+        toRGBArray(value, offset, rgb, 0);
+        return packRGB(rgb[0], rgb[1], rgb[2]);
+    }
+
+    /**
+     * Converts length colours, three components each, starting at
+     * values[offset] into RGB values in dest.
+     */
+    public void toRGB(float[] values, int offset, int[] dest, int destOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = toRGB(values, offset + i * 3);
+        }
     }
 
     public float[] fromRGB(int value) {
-        return fromRGB(new float[] {
-                (float) ((value >> 16) & 0xFF) / 255.0f,
-                (float) ((value >> 8) & 0xFF) / 255.0f,
-                (float) (value & 0xFF) / 255.0f
-        });
+        float[] out = new float[3];
+        fromRGB(value, out, 0);
+        return out;
+    }
+
+    /**
+     * Converts an RGB value into this colorspace, writing the three
+     * components to dest at the given offset instead of allocating.
+     */
+    public void fromRGB(int value, float[] dest, int offset) {
+        dest[offset] = (float) ((value >> 16) & 0xFF) / 255.0f;
+        dest[offset + 1] = (float) ((value >> 8) & 0xFF) / 255.0f;
+        dest[offset + 2] = (float) (value & 0xFF) / 255.0f;
+        fromRGB(dest, offset, dest, offset);
+    }
+
+    /**
+     * Converts length RGB values starting at values[offset] into this
+     * colorspace, writing three components per value to dest.
+     */
+    public void fromRGB(int[] values, int offset, float[] dest, int destOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            fromRGB(values[offset + i], dest, destOffset + i * 3);
+        }
     }
 
     public abstract float[] fromRGB(float[] value);
 
+    /**
+     * Converts the three components at value[offset] and writes the result
+     * to dest[destOffset]. The source and destination may overlap.
+     */
+    public abstract void fromRGB(float[] value, int offset, float[] dest, int destOffset);
+
     public abstract float[] toRGBArray(float[] value);
+
+    /**
+     * Inverse of {@link #fromRGB(float[], int, float[], int)}; the result is
+     * not clamped.
+     */
+    public abstract void toRGBArray(float[] value, int offset, float[] dest, int destOffset);
 }
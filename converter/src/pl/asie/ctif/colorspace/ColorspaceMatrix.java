@@ -32,11 +32,47 @@ public class ColorspaceMatrix extends Colorspace {
     }
 
     protected final float[] mmul3(float[] a, float[] b) {
-        return new float[] {
-                a[0] * b[0] + a[1] * b[1] + a[2] * b[2],
-                a[0] * b[3] + a[1] * b[4] + a[2] * b[5],
-                a[0] * b[6] + a[1] * b[7] + a[2] * b[8]
-        };
+        float[] out = new float[3];
+        mmul3(a, 0, b, out, 0);
+        return out;
+    }
+
+    protected final void mmul3(float[] a, int aOffset, float[] b, float[] dest, int destOffset) {
+        float a0 = a[aOffset], a1 = a[aOffset + 1], a2 = a[aOffset + 2];
+        dest[destOffset] = a0 * b[0] + a1 * b[1] + a2 * b[2];
+        dest[destOffset + 1] = a0 * b[3] + a1 * b[4] + a2 * b[5];
+        dest[destOffset + 2] = a0 * b[6] + a1 * b[7] + a2 * b[8];
+    }
+
+    @Override
+    public void fromRGB(float[] value, int offset, float[] dest, int destOffset) {
+        if (parent != null) {
+            parent.fromRGB(value, offset, dest, destOffset);
+            mmul3(dest, destOffset, matrixFromRGB, dest, destOffset);
+        } else {
+            mmul3(value, offset, matrixFromRGB, dest, destOffset);
+        }
+    }
+
+    @Override
+    public void fromRGB(int[] values, int offset, float[] dest, int destOffset, int length) {
+        if (parent != null) {
+            super.fromRGB(values, offset, dest, destOffset, length);
+            return;
+        }
+
+        float[] m = matrixFromRGB;
+        float m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7], m8 = m[8];
+        for (int i = 0; i < length; i++) {
+            int value = values[offset + i];
+            float r = (float) ((value >> 16) & 0xFF) / 255.0f;
+            float g = (float) ((value >> 8) & 0xFF) / 255.0f;
+            float b = (float) (value & 0xFF) / 255.0f;
+            int j = destOffset + i * 3;
+            dest[j] = r * m0 + g * m1 + b * m2;
+            dest[j + 1] = r * m3 + g * m4 + b * m5;
+            dest[j + 2] = r * m6 + g * m7 + b * m8;
+        }
     }
 
     @Override
@@ -48,4 +84,27 @@ public class ColorspaceMatrix extends Colorspace {
     public float[] toRGBArray(float[] value) {
         return parent != null ? parent.toRGBArray(mmul3(value, matrixToRGB)) : mmul3(value, matrixToRGB);
     }
+
+    @Override
+    public void toRGBArray(float[] value, int offset, float[] dest, int destOffset) {
+        mmul3(value, offset, matrixToRGB, dest, destOffset);
+        if (parent != null) {
+            parent.toRGBArray(dest, destOffset, dest, destOffset);
+        }
+    }
+
+    @Override
+    public int toRGB(float[] value, int offset) {
+        if (parent != null) {
+            return super.toRGB(value, offset);
+        }
+
+        float[] m = matrixToRGB;
+        float a0 = value[offset], a1 = value[offset + 1], a2 = value[offset + 2];
+        return packRGB(
+                a0 * m[0] + a1 * m[1] + a2 * m[2],
+                a0 * m[3] + a1 * m[4] + a2 * m[5],
+                a0 * m[6] + a1 * m[7] + a2 * m[8]
+        );
+    }
 }